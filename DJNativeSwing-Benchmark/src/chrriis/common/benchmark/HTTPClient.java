@@ -0,0 +1,208 @@
+/*
+ * Christopher Deckers (chrriis@nextencia.net)
+ * http://www.nextencia.net
+ *
+ * See the file "readme.txt" for information on usage and redistribution of
+ * this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ */
+package chrriis.common.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Locale;
+
+/**
+ * A minimal HTTP/1.1 client that keeps its connection alive and discards the content it receives, so that the benchmarks measure the web server
+ * rather than the client.
+ * @author Christopher Deckers
+ */
+class HTTPClient {
+
+  private String host;
+  private int port;
+  private Socket socket;
+  private InputStream in;
+  private OutputStream out;
+  private byte[] buffer = new byte[64 * 1024];
+  private int position;
+  private int limit;
+
+  public HTTPClient(String host, int port) {
+    this.host = host;
+    this.port = port;
+  }
+
+  private void connect() throws IOException {
+    socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+    in = socket.getInputStream();
+    out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+    position = 0;
+    limit = 0;
+  }
+
+  public void close() {
+    if(socket != null) {
+      try {
+        socket.close();
+      } catch(IOException e) {
+      }
+      socket = null;
+    }
+  }
+
+  /**
+   * @return the number of bytes of the content.
+   */
+  public long get(String path) throws IOException {
+    return send(getHead("GET", path, null, -1), null);
+  }
+
+  /**
+   * @return the number of bytes of the content of the response.
+   */
+  public long post(String path, String contentType, byte[] body) throws IOException {
+    return send(getHead("POST", path, contentType, body.length), body);
+  }
+
+  private byte[] getHead(String method, String path, String contentType, long contentLength) throws IOException {
+    StringBuilder sb = new StringBuilder(128);
+    sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+    sb.append("Host: ").append(host).append(':').append(port).append("\r\n");
+    if(contentType != null) {
+      sb.append("Content-Type: ").append(contentType).append("\r\n");
+      sb.append("Content-Length: ").append(contentLength).append("\r\n");
+    }
+    sb.append("\r\n");
+    return sb.toString().getBytes("ISO-8859-1");
+  }
+
+  private long send(byte[] head, byte[] body) throws IOException {
+    boolean isNewConnection = socket == null;
+    if(isNewConnection) {
+      connect();
+    }
+    try {
+      out.write(head);
+      if(body != null) {
+        out.write(body);
+      }
+      out.flush();
+      return readResponse();
+    } catch(IOException e) {
+      close();
+      if(isNewConnection) {
+        throw e;
+      }
+      // The web server may have closed the idle connection: retry once on a new one.
+      return send(head, body);
+    }
+  }
+
+  private long readResponse() throws IOException {
+    String statusLine = readLine();
+    if(!statusLine.startsWith("HTTP/1.1 200")) {
+      throw new IOException("Unexpected response: " + statusLine);
+    }
+    long contentLength = -1;
+    boolean isChunked = false;
+    boolean isClosing = false;
+    for(String line; (line = readLine()).length() > 0; ) {
+      int index = line.indexOf(':');
+      if(index <= 0) {
+        continue;
+      }
+      String name = line.substring(0, index).trim().toLowerCase(Locale.ENGLISH);
+      String value = line.substring(index + 1).trim();
+      if("content-length".equals(name)) {
+        contentLength = Long.parseLong(value);
+      } else if("transfer-encoding".equals(name)) {
+        isChunked = "chunked".equalsIgnoreCase(value);
+      } else if("connection".equals(name)) {
+        isClosing = "close".equalsIgnoreCase(value);
+      }
+    }
+    long count;
+    if(isChunked) {
+      count = 0;
+      while(true) {
+        String line = readLine();
+        int index = line.indexOf(';');
+        long chunkSize = Long.parseLong((index == -1? line: line.substring(0, index)).trim(), 16);
+        if(chunkSize == 0) {
+          // Skip the trailers.
+          while(readLine().length() > 0) {
+          }
+          break;
+        }
+        skip(chunkSize);
+        readLine();
+        count += chunkSize;
+      }
+    } else if(contentLength >= 0) {
+      skip(contentLength);
+      count = contentLength;
+    } else {
+      count = 0;
+      for(int n; (n = fill()) != -1; count += n) {
+        position = limit;
+      }
+      isClosing = true;
+    }
+    if(isClosing) {
+      close();
+    }
+    return count;
+  }
+
+  private int fill() throws IOException {
+    if(position == limit) {
+      position = 0;
+      limit = 0;
+    } else if(limit == buffer.length) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+    int n = in.read(buffer, limit, buffer.length - limit);
+    if(n > 0) {
+      limit += n;
+    }
+    return n;
+  }
+
+  private String readLine() throws IOException {
+    int start = position;
+    while(true) {
+      for(int i=start; i<limit; i++) {
+        if(buffer[i] == '\n') {
+          int end = i > position && buffer[i - 1] == '\r'? i - 1: i;
+          String line = new String(buffer, position, end - position, "ISO-8859-1");
+          position = i + 1;
+          return line;
+        }
+      }
+      int offset = limit - position;
+      if(fill() == -1) {
+        throw new EOFException();
+      }
+      start = position + offset;
+    }
+  }
+
+  private void skip(long count) throws IOException {
+    while(count > 0) {
+      if(position == limit && fill() == -1) {
+        throw new EOFException();
+      }
+      int n = (int)Math.min(count, limit - position);
+      position += n;
+      count -= n;
+    }
+  }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Christopher Deckers (chrriis@nextencia.net)
+ * http://www.nextencia.net
+ *
+ * See the file "readme.txt" for information on usage and redistribution of
+ * this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ */
+package chrriis.common.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import chrriis.common.WebServer;
+import chrriis.common.WebServer.HTTPData;
+import chrriis.common.WebServer.HTTPRequest;
+import chrriis.common.WebServer.WebServerContent;
+
+/**
+ * The benchmarks of the web server, which runs in the same process as the clients that load it. Each benchmark thread is a client with its own
+ * connection, which it keeps alive like browsers do.
+ * @author Christopher Deckers
+ */
+@State(Scope.Benchmark)
+public class WebServerBenchmark {
+
+  private static final int LARGE_FILE_SIZE = 4 * 1024 * 1024;
+  private static final int UPLOAD_SIZE = 256 * 1024;
+  private static final String MULTIPART_BOUNDARY = "----WebServerBenchmarkBoundary";
+
+  @Param({"THREAD", "VIRTUAL_THREAD", "NIO"})
+  public String engine;
+
+  private WebServer webServer;
+  private File largeFile;
+  private String host;
+  private int port;
+  private String smallResourcePath;
+  private String largeFilePath;
+  private String dynamicContentPath;
+  private String uploadPath;
+  private byte[] multipartBody;
+
+  @Setup(Level.Trial)
+  public void startWebServer() throws IOException {
+    webServer = new WebServer();
+    // The clients must not wait for a connection permit, which would measure the limit rather than the engine.
+    webServer.setMaxConnectionCount(256);
+    webServer.start(true, WebServer.ExecutionMode.valueOf(engine));
+    Random random = new Random(0);
+    largeFile = File.createTempFile("WebServerBenchmark", ".bin");
+    byte[] bytes = new byte[LARGE_FILE_SIZE];
+    random.nextBytes(bytes);
+    OutputStream out = new FileOutputStream(largeFile);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+    URL url = new URL(webServer.getClassPathResourceURL(WebServerBenchmark.class.getName(), "resource/small.js"));
+    host = url.getHost();
+    port = url.getPort();
+    smallResourcePath = url.getFile();
+    largeFilePath = new URL(webServer.getResourcePathURL(largeFile.getParent(), largeFile.getName())).getFile();
+    dynamicContentPath = new URL(webServer.getDynamicContentURL(WebServerBenchmark.class.getName(), "dynamic")).getFile();
+    uploadPath = new URL(webServer.getDynamicContentURL(WebServerBenchmark.class.getName(), "upload")).getFile();
+    byte[] uploadBytes = new byte[UPLOAD_SIZE];
+    random.nextBytes(uploadBytes);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    baos.write(("--" + MULTIPART_BOUNDARY + "\r\nContent-Disposition: form-data; name=\"name\"\r\n\r\nbenchmark\r\n").getBytes("UTF-8"));
+    baos.write(("--" + MULTIPART_BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"upload.bin\"\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes("UTF-8"));
+    baos.write(uploadBytes);
+    baos.write(("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes("UTF-8"));
+    multipartBody = baos.toByteArray();
+  }
+
+  @TearDown(Level.Trial)
+  public void stopWebServer() {
+    webServer.stop();
+    largeFile.delete();
+  }
+
+  @State(Scope.Thread)
+  public static class Client {
+
+    private HTTPClient httpClient;
+
+    @Setup(Level.Iteration)
+    public void connect(WebServerBenchmark benchmark) {
+      httpClient = new HTTPClient(benchmark.host, benchmark.port);
+    }
+
+    @TearDown(Level.Iteration)
+    public void disconnect() {
+      httpClient.close();
+    }
+
+  }
+
+  @Benchmark
+  public long smallClasspathResource(Client client) throws IOException {
+    return client.httpClient.get(smallResourcePath);
+  }
+
+  @Benchmark
+  public long largeFileResource(Client client) throws IOException {
+    return client.httpClient.get(largeFilePath);
+  }
+
+  @Benchmark
+  public long dynamicContent(Client client) throws IOException {
+    return client.httpClient.get(dynamicContentPath);
+  }
+
+  @Benchmark
+  public long multipartPost(Client client) throws IOException {
+    return client.httpClient.post(uploadPath, "multipart/form-data; boundary=" + MULTIPART_BOUNDARY, multipartBody);
+  }
+
+  protected static WebServerContent getWebServerContent(HTTPRequest httpRequest) {
+    if("upload".equals(httpRequest.getResourcePath())) {
+      long size = 0;
+      HTTPData[] httpDataArray = httpRequest.getHTTPPostDataArray();
+      if(httpDataArray != null) {
+        for(HTTPData httpData: httpDataArray) {
+          InputStream in = httpData.getInputStream();
+          if(in != null) {
+            try {
+              try {
+                byte[] bytes = new byte[8192];
+                for(int i; (i=in.read(bytes)) != -1; size += i) {
+                }
+              } finally {
+                in.close();
+              }
+            } catch(IOException e) {
+              e.printStackTrace();
+            }
+          }
+        }
+      }
+      final String content = "<html><body>Received " + size + " bytes.</body></html>";
+      return new WebServerContent() {
+        @Override
+        public InputStream getInputStream() {
+          return getInputStream(content);
+        }
+      };
+    }
+    // A page of a typical size, generated for each request.
+    StringBuilder sb = new StringBuilder(8192);
+    sb.append("<html><head><title>Dynamic content</title></head><body><table>");
+    for(int i=0; i<100; i++) {
+      sb.append("<tr><td>Row ").append(i).append("</td><td>").append(Integer.toHexString(i * 31)).append("</td></tr>");
+    }
+    sb.append("</table></body></html>");
+    final String content = sb.toString();
+    return new WebServerContent() {
+      @Override
+      public InputStream getInputStream() {
+        return getInputStream(content);
+      }
+    };
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Christopher Deckers (chrriis@nextencia.net)
+ * http://www.nextencia.net
+ *
+ * See the file "readme.txt" for information on usage and redistribution of
+ * this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ */
+package chrriis.common.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Run the benchmarks of the web server for each number of concurrent clients, and print their throughput, latency percentiles and allocation rate.
+ * The arguments are, all optional: a regular expression of the benchmarks to run, the comma-separated numbers of clients, the comma-separated engines
+ * of the web server, and the JSON file in which JMH writes the results (one file per number of clients).
+ * @author Christopher Deckers
+ */
+public class WebServerBenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException {
+    String include = args.length > 0? args[0]: ".*";
+    String[] threadCounts = (args.length > 1? args[1]: "1,4,16").split(",");
+    String[] engines = (args.length > 2? args[2]: "THREAD,VIRTUAL_THREAD,NIO").split(",");
+    String resultFile = args.length > 3? args[3]: null;
+    List<RunResult> runResultList = new ArrayList<RunResult>();
+    for(String threadCount: threadCounts) {
+      int threads = Integer.parseInt(threadCount.trim());
+      ChainedOptionsBuilder optionsBuilder = new OptionsBuilder()
+          .include(WebServerBenchmark.class.getName() + "\\." + include)
+          .param("engine", engines)
+          .mode(Mode.Throughput)
+          .mode(Mode.SampleTime)
+          .timeUnit(TimeUnit.MICROSECONDS)
+          .threads(threads)
+          .forks(1)
+          .warmupIterations(3)
+          .warmupTime(TimeValue.seconds(2))
+          .measurementIterations(5)
+          .measurementTime(TimeValue.seconds(2))
+          .addProfiler(GCProfiler.class);
+      if(resultFile != null) {
+        optionsBuilder.resultFormat(ResultFormatType.JSON).result(resultFile.replaceFirst("(\\.json)?$", "-" + threads + "threads.json"));
+      }
+      runResultList.addAll(new Runner(optionsBuilder.build()).run());
+    }
+    printSummary(runResultList);
+  }
+
+  /**
+   * Print a line per benchmark, engine and number of clients, merging the results of the throughput and sample time modes.
+   */
+  private static void printSummary(List<RunResult> runResultList) {
+    // The values are: throughput (ops/s), p50 and p99 latencies (us), allocation rate (MB/s) and allocation per operation (bytes).
+    Map<String, double[]> summaryMap = new LinkedHashMap<String, double[]>();
+    for(RunResult runResult: runResultList) {
+      BenchmarkParams params = runResult.getParams();
+      String benchmark = params.getBenchmark();
+      String key = String.format("%-24s %-16s %7d", benchmark.substring(benchmark.lastIndexOf('.') + 1), params.getParam("engine"), params.getThreads());
+      double[] values = summaryMap.get(key);
+      if(values == null) {
+        values = new double[] {Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+        summaryMap.put(key, values);
+      }
+      Result<?> primaryResult = runResult.getPrimaryResult();
+      switch(params.getMode()) {
+        case Throughput: {
+          values[0] = primaryResult.getScore() * 1000000;
+          Result<?> allocationRate = runResult.getSecondaryResults().get("gc.alloc.rate");
+          if(allocationRate != null) {
+            values[3] = allocationRate.getScore();
+          }
+          Result<?> allocationPerOperation = runResult.getSecondaryResults().get("gc.alloc.rate.norm");
+          if(allocationPerOperation != null) {
+            values[4] = allocationPerOperation.getScore();
+          }
+          break;
+        }
+        case SampleTime: {
+          values[1] = primaryResult.getStatistics().getPercentile(50);
+          values[2] = primaryResult.getStatistics().getPercentile(99);
+          break;
+        }
+        default:
+          break;
+      }
+    }
+    System.out.println();
+    System.out.println(String.format("%-24s %-16s %7s %12s %10s %10s %12s %12s", "Benchmark", "Engine", "Clients", "ops/s", "p50 (us)", "p99 (us)", "alloc MB/s", "alloc B/op"));
+    for(Map.Entry<String, double[]> entry: summaryMap.entrySet()) {
+      double[] values = entry.getValue();
+      System.out.println(String.format("%s %12.0f %10.1f %10.1f %12.1f %12.0f", entry.getKey(), values[0], values[1], values[2], values[3], values[4]));
+    }
+  }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * A small script, of the size of the scripts that the components load from the class path.
+ */
+var benchmark = {
+  value0: function(a, b) {
+    return (a * 1 + b) % 65536;
+  },
+  value1: function(a, b) {
+    return (a * 2 + b) % 65536;
+  },
+  value2: function(a, b) {
+    return (a * 3 + b) % 65536;
+  },
+  value3: function(a, b) {
+    return (a * 4 + b) % 65536;
+  },
+  value4: function(a, b) {
+    return (a * 5 + b) % 65536;
+  },
+  value5: function(a, b) {
+    return (a * 6 + b) % 65536;
+  },
+  value6: function(a, b) {
+    return (a * 7 + b) % 65536;
+  },
+  value7: function(a, b) {
+    return (a * 8 + b) % 65536;
+  },
+  value8: function(a, b) {
+    return (a * 9 + b) % 65536;
+  },
+  value9: function(a, b) {
+    return (a * 10 + b) % 65536;
+  },
+  value10: function(a, b) {
+    return (a * 11 + b) % 65536;
+  },
+  value11: function(a, b) {
+    return (a * 12 + b) % 65536;
+  },
+  value12: function(a, b) {
+    return (a * 13 + b) % 65536;
+  },
+  value13: function(a, b) {
+    return (a * 14 + b) % 65536;
+  },
+  value14: function(a, b) {
+    return (a * 15 + b) % 65536;
+  },
+  value15: function(a, b) {
+    return (a * 16 + b) % 65536;
+  },
+  value16: function(a, b) {
+    return (a * 17 + b) % 65536;
+  },
+  value17: function(a, b) {
+    return (a * 18 + b) % 65536;
+  },
+  value18: function(a, b) {
+    return (a * 19 + b) % 65536;
+  },
+  value19: function(a, b) {
+    return (a * 20 + b) % 65536;
+  },
+  value20: function(a, b) {
+    return (a * 21 + b) % 65536;
+  },
+  value21: function(a, b) {
+    return (a * 22 + b) % 65536;
+  },
+  value22: function(a, b) {
+    return (a * 23 + b) % 65536;
+  },
+  value23: function(a, b) {
+    return (a * 24 + b) % 65536;
+  },
+  value24: function(a, b) {
+    return (a * 25 + b) % 65536;
+  },
+  value25: function(a, b) {
+    return (a * 26 + b) % 65536;
+  },
+  value26: function(a, b) {
+    return (a * 27 + b) % 65536;
+  },
+  value27: function(a, b) {
+    return (a * 28 + b) % 65536;
+  },
+  value28: function(a, b) {
+    return (a * 29 + b) % 65536;
+  },
+  value29: function(a, b) {
+    return (a * 30 + b) % 65536;
+  },
+  value30: function(a, b) {
+    return (a * 31 + b) % 65536;
+  },
+  value31: function(a, b) {
+    return (a * 32 + b) % 65536;
+  },
+  value32: function(a, b) {
+    return (a * 33 + b) % 65536;
+  },
+  value33: function(a, b) {
+    return (a * 34 + b) % 65536;
+  },
+  value34: function(a, b) {
+    return (a * 35 + b) % 65536;
+  },
+  value35: function(a, b) {
+    return (a * 36 + b) % 65536;
+  },
+  value36: function(a, b) {
+    return (a * 37 + b) % 65536;
+  },
+  value37: function(a, b) {
+    return (a * 38 + b) % 65536;
+  },
+  value38: function(a, b) {
+    return (a * 39 + b) % 65536;
+  },
+  value39: function(a, b) {
+    return (a * 40 + b) % 65536;
+  },
+  size: 40
+};
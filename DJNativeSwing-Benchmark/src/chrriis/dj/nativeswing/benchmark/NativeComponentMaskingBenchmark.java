@@ -0,0 +1,147 @@
+/*
+ * Christopher Deckers (chrriis@nextencia.net)
+ * http://www.nextencia.net
+ *
+ * See the file "readme.txt" for information on usage and redistribution of
+ * this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ */
+package chrriis.dj.nativeswing.benchmark;
+
+import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Toolkit;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import chrriis.dj.nativeswing.NSComponentOptions;
+import chrriis.dj.nativeswing.NSOption;
+import chrriis.dj.nativeswing.NSSystemProperty;
+import chrriis.dj.nativeswing.NativeComponentWrapper;
+import chrriis.dj.nativeswing.NativeSwing;
+
+/**
+ * The benchmark of the visibility constraints of a native component under an animated Swing component, applied with the native masking of JNA or
+ * with the mixing of the JDK. A plain AWT canvas stands for the native component. Each operation is an animation frame: the Swing component moves,
+ * and the frame ends when the shape of the native component is adjusted.<br>
+ * The JDK mixing is a setting of the whole JVM, so the runner forks each mode with the matching "sun.awt.disableMixing" system property.
+ * @author Christopher Deckers
+ */
+@State(Scope.Benchmark)
+public class NativeComponentMaskingBenchmark {
+
+  private static final int WIDTH = 600;
+  private static final int HEIGHT = 400;
+  private static final int OVERLAY_SIZE = 100;
+  private static final int STEP = 7;
+
+  private static final Runnable EMPTY_RUNNABLE = new Runnable() {
+    public void run() {
+    }
+  };
+
+  @Param({"JNA_MASKING", "JDK_MIXING"})
+  public String mode;
+
+  private JFrame frame;
+  private JPanel overlayPanel;
+  private int overlayX;
+
+  /**
+   * The CPU time of the process, reported as a rate like the frames, so that their ratio is the CPU time per frame.
+   */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class CPUCounters {
+
+    public long cpuMicros;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      cpuMicros = 0;
+    }
+
+  }
+
+  @Setup(Level.Trial)
+  public void showFrame() throws InterruptedException, InvocationTargetException {
+    NativeSwing.initialize();
+    final boolean isJDKMixing = "JDK_MIXING".equals(mode);
+    if(isJDKMixing != Boolean.valueOf(NSSystemProperty.INTEGRATION_USEDEFAULTCLIPPING.get())) {
+      throw new IllegalStateException("The mode " + mode + " requires the JDK mixing to be " + (isJDKMixing? "enabled": "disabled") + ".");
+    }
+    SwingUtilities.invokeAndWait(new Runnable() {
+      public void run() {
+        Canvas canvas = new Canvas();
+        canvas.setBackground(Color.WHITE);
+        NSOption option = isJDKMixing? NSComponentOptions.constrainVisibilityWithJDKMixing(): NSComponentOptions.constrainVisibility();
+        Component embeddableComponent = new NativeComponentWrapper(canvas).createEmbeddableComponent(option);
+        JPanel contentPane = new JPanel(null);
+        contentPane.setPreferredSize(new Dimension(WIDTH, HEIGHT));
+        overlayPanel = new JPanel();
+        overlayPanel.setBackground(Color.RED);
+        overlayPanel.setBounds(0, (HEIGHT - OVERLAY_SIZE) / 2, OVERLAY_SIZE, OVERLAY_SIZE);
+        // Added first to be above the native component.
+        contentPane.add(overlayPanel);
+        embeddableComponent.setBounds(0, 0, WIDTH, HEIGHT);
+        contentPane.add(embeddableComponent);
+        frame = new JFrame("NativeComponentMaskingBenchmark - " + mode);
+        frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        frame.setContentPane(contentPane);
+        frame.pack();
+        frame.setVisible(true);
+      }
+    });
+    flushEventQueue();
+  }
+
+  @TearDown(Level.Trial)
+  public void disposeFrame() throws InterruptedException, InvocationTargetException {
+    SwingUtilities.invokeAndWait(new Runnable() {
+      public void run() {
+        frame.dispose();
+      }
+    });
+  }
+
+  @Benchmark
+  public void animateFrame(CPUCounters counters) throws InterruptedException, InvocationTargetException {
+    long cpuTime = getProcessCPUTime();
+    SwingUtilities.invokeAndWait(new Runnable() {
+      public void run() {
+        overlayX = (overlayX + STEP) % (WIDTH - OVERLAY_SIZE);
+        overlayPanel.setLocation(overlayX, overlayPanel.getY());
+      }
+    });
+    flushEventQueue();
+    counters.cpuMicros += (getProcessCPUTime() - cpuTime) / 1000;
+  }
+
+  /**
+   * Wait until the move event is dispatched, then until the shape adjustment that it schedules is done, and until the windowing system applied it.
+   */
+  private static void flushEventQueue() throws InterruptedException, InvocationTargetException {
+    SwingUtilities.invokeAndWait(EMPTY_RUNNABLE);
+    SwingUtilities.invokeAndWait(EMPTY_RUNNABLE);
+    Toolkit.getDefaultToolkit().sync();
+  }
+
+  private static long getProcessCPUTime() {
+    return ((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+  }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Christopher Deckers (chrriis@nextencia.net)
+ * http://www.nextencia.net
+ *
+ * See the file "readme.txt" for information on usage and redistribution of
+ * this file, and for a DISCLAIMER OF ALL WARRANTIES.
+ */
+package chrriis.dj.nativeswing.benchmark;
+
+import java.awt.GraphicsEnvironment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Run the benchmark of the visibility constraints for each mode, and print the frame rate and the CPU time per frame. The benchmark needs a display,
+ * and is skipped without one. The argument is, optional: the JSON file in which JMH writes the results (one file per mode).
+ * @author Christopher Deckers
+ */
+public class NativeComponentMaskingBenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException {
+    if(GraphicsEnvironment.isHeadless()) {
+      System.err.println("The masking benchmark needs a display: skipped.");
+      return;
+    }
+    String resultFile = args.length > 0? args[0]: null;
+    List<RunResult> runResultList = new ArrayList<RunResult>();
+    for(String mode: new String[] {"JNA_MASKING", "JDK_MIXING"}) {
+      ChainedOptionsBuilder optionsBuilder = new OptionsBuilder()
+          .include(NativeComponentMaskingBenchmark.class.getName())
+          .param("mode", mode)
+          // The mixing is read once by AWT, so each mode runs in a JVM started with its own setting.
+          .jvmArgsAppend("-Dsun.awt.disableMixing=" + !"JDK_MIXING".equals(mode))
+          .mode(Mode.Throughput)
+          .timeUnit(TimeUnit.SECONDS)
+          .forks(1)
+          .warmupIterations(3)
+          .warmupTime(TimeValue.seconds(2))
+          .measurementIterations(5)
+          .measurementTime(TimeValue.seconds(2));
+      if(resultFile != null) {
+        optionsBuilder.resultFormat(ResultFormatType.JSON).result(resultFile.replaceFirst("(\\.json)?$", "-" + mode + ".json"));
+      }
+      runResultList.addAll(new Runner(optionsBuilder.build()).run());
+    }
+    System.out.println();
+    System.out.println(String.format("%-16s %12s %16s", "Mode", "frames/s", "CPU us/frame"));
+    for(RunResult runResult: runResultList) {
+      double frameRate = runResult.getPrimaryResult().getScore();
+      Result<?> cpuRate = runResult.getSecondaryResults().get("cpuMicros");
+      System.out.println(String.format("%-16s %12.0f %16.1f", runResult.getParams().getParam("mode"), frameRate, cpuRate == null? Double.NaN: cpuRate.getScore() / frameRate));
+    }
+  }
+
+}
@@ -61,6 +61,15 @@ public enum NSSystemPropertySWT {
    */
   WEBSERVER_DEBUG_PRINTREQUESTS(NSSystemProperty.WEBSERVER_DEBUG_PRINTREQUESTS),
 
+  /**
+   * nativeswing.webserver.prefetch
+   * = true/false (default: true)<br/>
+   * Set whether the resources of the components found on the class path (like
+   * the HTML editors) should be loaded in the background by the web server
+   * when the native interface is opened.
+   */
+  WEBSERVER_PREFETCH(NSSystemProperty.WEBSERVER_PREFETCH),
+
 
   /**
    * nativeswing.components.debug.printOptions
@@ -7,9 +7,15 @@
  */
 package chrriis.dj.nativeswing.swtimpl;
 
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
 
+import chrriis.common.WebServer;
 import chrriis.dj.nativeswing.swtimpl.internal.ISWTNativeInterface;
 import chrriis.dj.nativeswing.swtimpl.internal.NativeCoreObjectFactory;
 
@@ -98,6 +104,41 @@ public abstract class NativeInterface {
    */
   public static void open() {
     swtNativeInterface.open_();
+    prefetchWebServerResources();
+  }
+
+  private static boolean isPrefetchingWebServerResources;
+
+  /**
+   * Let the web server load the resources of the components that are found on the class path, so that the first component does not wait for them.
+   */
+  private static synchronized void prefetchWebServerResources() {
+    if(isPrefetchingWebServerResources || !Boolean.parseBoolean(NSSystemPropertySWT.WEBSERVER_PREFETCH.get("true"))) {
+      return;
+    }
+    isPrefetchingWebServerResources = true;
+    Properties properties = new Properties();
+    try {
+      InputStream in = NativeInterface.class.getResourceAsStream("components/resource/Prefetch.properties");
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+    } catch(Exception e) {
+      e.printStackTrace();
+      return;
+    }
+    List<String> classpathPrefixList = new ArrayList<String>();
+    for(Object value: properties.values()) {
+      String[] classpathPrefixes = ((String)value).split("\\s*,\\s*");
+      if(NativeInterface.class.getResource(classpathPrefixes[0]) != null) {
+        classpathPrefixList.addAll(Arrays.asList(classpathPrefixes));
+      }
+    }
+    if(!classpathPrefixList.isEmpty()) {
+      WebServer.getDefaultWebServer().prefetchInBackground(classpathPrefixList.toArray(new String[0]));
+    }
   }
 
   static Object syncSend(boolean isTargetNativeSide, Message message) {
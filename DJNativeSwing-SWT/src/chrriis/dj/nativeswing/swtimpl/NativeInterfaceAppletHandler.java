@@ -133,7 +133,7 @@ public class NativeInterfaceAppletHandler {
 
   private static void stopActivity() {
     NativeInterface.close();
-    WebServer.stopDefaultWebServer();
+    WebServer.stopAllWebServers();
   }
 
   private static void checkAppletMode() {
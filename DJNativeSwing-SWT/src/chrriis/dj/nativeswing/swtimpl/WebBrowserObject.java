@@ -9,7 +9,11 @@ package chrriis.dj.nativeswing.swtimpl;
 
 import java.awt.Color;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.util.EventListener;
 import java.util.HashMap;
@@ -27,6 +31,7 @@ import chrriis.common.WebServer;
 import chrriis.common.WebServer.HTTPData;
 import chrriis.common.WebServer.HTTPRequest;
 import chrriis.common.WebServer.WebServerContent;
+import chrriis.common.WebServer.WebServerOutputContent;
 import chrriis.dj.nativeswing.swtimpl.components.JWebBrowser;
 import chrriis.dj.nativeswing.swtimpl.components.WebBrowserAdapter;
 import chrriis.dj.nativeswing.swtimpl.components.WebBrowserCommandEvent;
@@ -150,14 +155,14 @@ public abstract class WebBrowserObject {
           }
         };
       }
-      return new WebServerContent() {
+      return new WebServerOutputContent() {
         @Override
-        public InputStream getInputStream() {
+        public void writeContent(OutputStream out) throws IOException {
           String javascriptDefinitions = component.getJavascriptDefinitions();
-          javascriptDefinitions = javascriptDefinitions == null? "": javascriptDefinitions + LS;
           String additionalHeadDefinitions = component.getAdditionalHeadDefinitions();
-          additionalHeadDefinitions = additionalHeadDefinitions == null? "": additionalHeadDefinitions + LS;
-          String content =
+          // The definitions can be large, so they are written as they are rather than concatenated with the page.
+          Writer writer = new OutputStreamWriter(out, "UTF-8");
+          writer.write(
             "<html>" + LS +
             "  <head>" + LS +
             "    <meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\"/>" + LS +
@@ -193,8 +198,13 @@ public abstract class WebBrowserObject {
             "        } else {" + LS +
             "          return document.getElementById(movieName);" + LS +
             "        }" + LS +
-            "      }" + LS +
-            javascriptDefinitions +
+            "      }" + LS
+          );
+          if(javascriptDefinitions != null) {
+            writer.write(javascriptDefinitions);
+            writer.write(LS);
+          }
+          writer.write(
             "      //-->" + LS +
             "    </script>" + LS +
             "    <style type=\"text/css\">" + LS +
@@ -202,8 +212,13 @@ public abstract class WebBrowserObject {
             "      html, object, embed, div, body, table { width: 100%; height: 100%; min-height: 100%; margin: 0; padding: 0; overflow: hidden; text-align: center; }" + LS +
             "      object, embed, div { position: absolute; left:0; top:0;}" + LS +
             "      td { vertical-align: middle; }" + LS +
-            "    </style>" + LS +
-            additionalHeadDefinitions +
+            "    </style>" + LS
+          );
+          if(additionalHeadDefinitions != null) {
+            writer.write(additionalHeadDefinitions);
+            writer.write(LS);
+          }
+          writer.write(
             "  </head>" + LS +
             "  <body height=\"*\">" + LS +
             "    <iframe style=\"display:none;\" name=\"j_iframe\"></iframe>" + LS +
@@ -212,8 +227,9 @@ public abstract class WebBrowserObject {
             "    </form>" + LS +
             "    <script src=\"" + WebServer.getDefaultWebServer().getDynamicContentURL(WebBrowserObject.class.getName(), String.valueOf(instanceID), "js") + "\"></script>" + LS +
             "  </body>" + LS +
-            "</html>" + LS;
-          return getInputStream(content);
+            "</html>" + LS
+          );
+          writer.flush();
         }
       };
     }
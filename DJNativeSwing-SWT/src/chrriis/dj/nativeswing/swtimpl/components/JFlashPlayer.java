@@ -182,9 +182,9 @@ public class JFlashPlayer extends NSPanelComponent {
       if(Boolean.parseBoolean(NSSystemProperty.WEBSERVER_ACTIVATEOLDRESOURCEMETHOD.get())) {
         // Local files cannot be played due to security restrictions. We need to proxy.
         // Moreover, we need to double encode non ASCII characters.
-        return WebServer.getDefaultWebServer().getResourcePathURL(encodeSpecialCharacters(localFile.getParent()), encodeSpecialCharacters(localFile.getName()));
+        return WebServer.getWebServer(WebServer.MEDIA_WEB_SERVER).getResourcePathURL(encodeSpecialCharacters(localFile.getParent()), encodeSpecialCharacters(localFile.getName()));
       }
-      return WebServer.getDefaultWebServer().getResourcePathURL(localFile.getParent(), localFile.getName());
+      return WebServer.getWebServer(WebServer.MEDIA_WEB_SERVER).getResourcePathURL(localFile.getParent(), localFile.getName());
     }
 
     private String encodeSpecialCharacters(String s) {
@@ -281,7 +281,7 @@ public class JFlashPlayer extends NSPanelComponent {
    */
   public void load(Class<?> clazz, String resourcePath, FlashPluginOptions options) {
     addReferenceClassLoader(clazz.getClassLoader());
-    load(WebServer.getDefaultWebServer().getClassPathResourceURL(clazz.getName(), resourcePath), options);
+    load(WebServer.getWebServer(WebServer.MEDIA_WEB_SERVER).getClassPathResourceURL(clazz.getName(), resourcePath), options);
   }
 
   /**
@@ -438,13 +438,13 @@ public class JFlashPlayer extends NSPanelComponent {
     }
     // If a different class loader is used to locate a resource, we need to allow th web server to find that resource
     referenceClassLoaderList.add(referenceClassLoader);
-    WebServer.getDefaultWebServer().addReferenceClassLoader(referenceClassLoader);
+    WebServer.getWebServer(WebServer.MEDIA_WEB_SERVER).addReferenceClassLoader(referenceClassLoader);
   }
 
   @Override
   protected void finalize() throws Throwable {
     for(ClassLoader referenceClassLoader: referenceClassLoaderList) {
-      WebServer.getDefaultWebServer().removeReferenceClassLoader(referenceClassLoader);
+      WebServer.getWebServer(WebServer.MEDIA_WEB_SERVER).removeReferenceClassLoader(referenceClassLoader);
     }
     referenceClassLoaderList.clear();
     super.finalize();
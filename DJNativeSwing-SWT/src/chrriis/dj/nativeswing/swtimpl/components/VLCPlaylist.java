@@ -65,7 +65,7 @@ public class VLCPlaylist {
    */
   public void addItem(Class<?> clazz, String resourcePath, String options) {
     vlcPlayer.addReferenceClassLoader(clazz.getClassLoader());
-    addItem(WebServer.getDefaultWebServer().getClassPathResourceURL(clazz.getName(), resourcePath), options);
+    addItem(WebServer.getWebServer(WebServer.MEDIA_WEB_SERVER).getClassPathResourceURL(clazz.getName(), resourcePath), options);
   }
 
   /**
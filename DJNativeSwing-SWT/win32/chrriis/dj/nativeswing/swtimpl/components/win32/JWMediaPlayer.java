@@ -93,7 +93,7 @@ public class JWMediaPlayer extends NSPanelComponent {
    */
   public void load(Class<?> clazz, String resourcePath) {
     addReferenceClassLoader(clazz.getClassLoader());
-    load(WebServer.getDefaultWebServer().getClassPathResourceURL(clazz.getName(), resourcePath));
+    load(WebServer.getWebServer(WebServer.MEDIA_WEB_SERVER).getClassPathResourceURL(clazz.getName(), resourcePath));
   }
 
   /**
@@ -187,13 +187,13 @@ public class JWMediaPlayer extends NSPanelComponent {
     }
     // If a different class loader is used to locate a resource, we need to allow th web server to find that resource
     referenceClassLoaderList.add(referenceClassLoader);
-    WebServer.getDefaultWebServer().addReferenceClassLoader(referenceClassLoader);
+    WebServer.getWebServer(WebServer.MEDIA_WEB_SERVER).addReferenceClassLoader(referenceClassLoader);
   }
 
   @Override
   protected void finalize() throws Throwable {
     for(ClassLoader referenceClassLoader: referenceClassLoaderList) {
-      WebServer.getDefaultWebServer().removeReferenceClassLoader(referenceClassLoader);
+      WebServer.getWebServer(WebServer.MEDIA_WEB_SERVER).removeReferenceClassLoader(referenceClassLoader);
     }
     referenceClassLoaderList.clear();
     super.finalize();
@@ -847,7 +847,7 @@ public class SWTNativeInterface extends NativeInterface implements ISWTNativeInt
       referenceList.add(NativeInterface.class);
       referenceList.add(SWTNativeInterface.class);
       if(SWTNativeInterface.class.getClassLoader() != NativeInterface.class.getClassLoader()) {
-        WebServer.getDefaultWebServer().addReferenceClassLoader(SWTNativeInterface.class.getClassLoader());
+        WebServer.getWebServer(WebServer.CLASS_LOADING_WEB_SERVER).addReferenceClassLoader(SWTNativeInterface.class.getClassLoader());
       }
       referenceList.add("org/eclipse/swt/widgets/Display.class");
       optionalReferenceList.add("org/mozilla/xpcom/Mozilla.class");
@@ -964,7 +964,7 @@ public class SWTNativeInterface extends NativeInterface implements ISWTNativeInt
       List<String> mainClassParameterList = new ArrayList<String>();
       if(isProxyClassLoaderUsed) {
         mainClass = NetworkURLClassLoader.class.getName();
-        mainClassParameterList.add(WebServer.getDefaultWebServer().getClassPathResourceURL("", ""));
+        mainClassParameterList.add(WebServer.getWebServer(WebServer.CLASS_LOADING_WEB_SERVER).getClassPathResourceURL("", ""));
         mainClassParameterList.add(NativeInterface.class.getName());
       } else {
         mainClass = NativeInterface.class.getName();
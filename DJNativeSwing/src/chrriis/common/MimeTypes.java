@@ -269,6 +269,25 @@ public class MimeTypes {
     }
   }
   
+  /**
+   * Indicate whether a mime type designates textual content, like HTML, CSS, JavaScript or XML, which is worth compressing.
+   * @param mimeType the mime type, possibly with parameters like the charset.
+   */
+  public static boolean isTextMimeType(String mimeType) {
+    if(mimeType == null) {
+      return false;
+    }
+    int index = mimeType.indexOf(';');
+    if(index != -1) {
+      mimeType = mimeType.substring(0, index);
+    }
+    mimeType = mimeType.trim().toLowerCase(Locale.ENGLISH);
+    if(mimeType.startsWith("text/") || mimeType.endsWith("+xml")) {
+      return true;
+    }
+    return "application/x-javascript".equals(mimeType) || "application/javascript".equals(mimeType) || "application/json".equals(mimeType) || "application/xml".equals(mimeType);
+  }
+  
   /**
    * Add (or replace) a mime type for a given extension.
    * This method is useful when a new mime type needs to be supported and the library does not yet contain it.
@@ -7,28 +7,73 @@
  */
 package chrriis.common;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import chrriis.dj.nativeswing.NSSystemProperty;
 
 /**
- * A convenient class to register objects to an ID.
+ * A convenient class to register objects to an ID.<br/>
+ * The objects are weakly referenced in an open addressing table keyed by their ID. Lookups do not lock, while changes are made under the lock of the
+ * registry. The entries of the objects that are garbage collected are removed when their reference is enqueued.
  * @author Christopher Deckers
  */
 public class ObjectRegistry {
 
+  private static class Entry extends WeakReference<Object> {
+
+    private final ObjectRegistry registry;
+    private final int instanceID;
+
+    public Entry(ObjectRegistry registry, int instanceID, Object o, ReferenceQueue<Object> referenceQueue) {
+      super(o, referenceQueue);
+      this.registry = registry;
+      this.instanceID = instanceID;
+    }
+
+  }
+
+  /**
+   * The marker of a slot which entry was removed, so that the lookups continue past it.
+   */
+  private static final Entry REMOVED_ENTRY = new Entry(null, 0, null, null);
+
+  private static class Table {
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int shift;
+    /**
+     * The number of slots that are not empty, including the removed entries. This is only accessed under the lock of the registry.
+     */
+    private int usedSlotCount;
+
+    public Table(int capacity) {
+      slots = new AtomicReferenceArray<Entry>(capacity);
+      shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    public int getSlotIndex(int instanceID) {
+      // The IDs are mostly sequential: spread them so that they do not form clusters.
+      return (instanceID * 0x9E3779B9) >>> shift;
+    }
+
+  }
+
+  private static final int MIN_CAPACITY = 16;
+
+  private static ReferenceQueue<Object> referenceQueue = new ReferenceQueue<Object>();
+  private static AtomicInteger entryCount = new AtomicInteger();
+  private static Object cleanUpLock = new Object();
   private static Thread cleanUpThread;
-  private static Set<ObjectRegistry> registrySet = new HashSet<ObjectRegistry>();
 
   private static int nextThreadNumber;
 
-  private static void startThread(ObjectRegistry objectRegistry) {
-    synchronized (registrySet) {
-      registrySet.add(objectRegistry);
+  private static void startThread() {
+    synchronized (cleanUpLock) {
       if(cleanUpThread != null) {
         return;
       }
@@ -36,30 +81,19 @@ public class ObjectRegistry {
         @Override
         public void run() {
           while(true) {
+            Reference<?> reference = null;
             try {
-              sleep(1000);
+              reference = referenceQueue.remove(1000);
             } catch(Exception e) {
             }
-            ObjectRegistry[] registries;
-            synchronized (registrySet) {
-              registries = registrySet.toArray(new ObjectRegistry[0]);
+            if(reference != null) {
+              Entry entry = (Entry)reference;
+              entry.registry.removeEntry(entry);
+              continue;
             }
-            for(ObjectRegistry registry: registries) {
-              synchronized(registry) {
-                for(Integer instanceID: registry.instanceIDToObjectReferenceMap.keySet().toArray(new Integer[0])) {
-                  if(registry.instanceIDToObjectReferenceMap.get(instanceID).get() == null) {
-                    registry.instanceIDToObjectReferenceMap.remove(instanceID);
-                  }
-                }
-                if(registry.instanceIDToObjectReferenceMap.isEmpty()) {
-                  synchronized (registrySet) {
-                    registrySet.remove(registry);
-                  }
-                }
-              }
-            }
-            synchronized (registrySet) {
-              if(registrySet.isEmpty()) {
+            synchronized (cleanUpLock) {
+              // Entries are counted before this check when they are added, so the thread is started again if needed.
+              if(entryCount.get() == 0) {
                 cleanUpThread = null;
                 return;
               }
@@ -73,8 +107,18 @@ public class ObjectRegistry {
     }
   }
 
+  /**
+   * Remove the entries which objects were garbage collected and that the clean up thread did not process yet.
+   */
+  private static void removeCollectedEntries() {
+    for(Reference<?> reference; (reference = referenceQueue.poll()) != null; ) {
+      Entry entry = (Entry)reference;
+      entry.registry.removeEntry(entry);
+    }
+  }
+
   private int nextInstanceID = 1;
-  private Map<Integer, WeakReference<Object>> instanceIDToObjectReferenceMap = new HashMap<Integer, WeakReference<Object>>();
+  private volatile Table table = new Table(MIN_CAPACITY);
 
   /**
    * Construct an object registry.
@@ -82,20 +126,135 @@ public class ObjectRegistry {
   public ObjectRegistry() {
   }
 
+  /**
+   * Find the entry of an ID, without locking.
+   */
+  private Entry getEntry(int instanceID) {
+    Table table = this.table;
+    AtomicReferenceArray<Entry> slots = table.slots;
+    int mask = slots.length() - 1;
+    for(int i=table.getSlotIndex(instanceID); ; i=(i + 1) & mask) {
+      Entry entry = slots.get(i);
+      if(entry == null) {
+        return null;
+      }
+      if(entry != REMOVED_ENTRY && entry.instanceID == instanceID) {
+        return entry;
+      }
+    }
+  }
+
+  /**
+   * Put an entry in the table, replacing the entry of the same ID if any. This must be called under the lock of the registry.
+   */
+  private void putEntry(Entry newEntry) {
+    Table table = this.table;
+    if((table.usedSlotCount + 1) * 2 > table.slots.length()) {
+      table = resize();
+    }
+    AtomicReferenceArray<Entry> slots = table.slots;
+    int mask = slots.length() - 1;
+    int removedEntryIndex = -1;
+    for(int i=table.getSlotIndex(newEntry.instanceID); ; i=(i + 1) & mask) {
+      Entry entry = slots.get(i);
+      if(entry == null) {
+        if(removedEntryIndex == -1) {
+          table.usedSlotCount++;
+          slots.set(i, newEntry);
+        } else {
+          slots.set(removedEntryIndex, newEntry);
+        }
+        entryCount.incrementAndGet();
+        return;
+      }
+      if(entry == REMOVED_ENTRY) {
+        if(removedEntryIndex == -1) {
+          removedEntryIndex = i;
+        }
+      } else if(entry.instanceID == newEntry.instanceID) {
+        slots.set(i, newEntry);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Copy the entries to a new table, which capacity depends on the number of entries so that the removed entries do not accumulate. This must be
+   * called under the lock of the registry.
+   */
+  private Table resize() {
+    AtomicReferenceArray<Entry> slots = table.slots;
+    int count = 0;
+    for(int i=slots.length()-1; i>=0; i--) {
+      Entry entry = slots.get(i);
+      if(entry != null && entry != REMOVED_ENTRY) {
+        count++;
+      }
+    }
+    int capacity = MIN_CAPACITY;
+    while(capacity < (count + 1) * 4) {
+      capacity *= 2;
+    }
+    Table newTable = new Table(capacity);
+    AtomicReferenceArray<Entry> newSlots = newTable.slots;
+    int mask = capacity - 1;
+    for(int i=slots.length()-1; i>=0; i--) {
+      Entry entry = slots.get(i);
+      if(entry != null && entry != REMOVED_ENTRY) {
+        int j = newTable.getSlotIndex(entry.instanceID);
+        while(newSlots.get(j) != null) {
+          j = (j + 1) & mask;
+        }
+        newSlots.set(j, entry);
+      }
+    }
+    newTable.usedSlotCount = count;
+    // Lookups that use the previous table still find the entries that it contains.
+    table = newTable;
+    return newTable;
+  }
+
+  /**
+   * Remove the entry of an ID, or a specific entry if it is given.
+   */
+  private synchronized void removeEntry(int instanceID, Entry expectedEntry) {
+    Table table = this.table;
+    AtomicReferenceArray<Entry> slots = table.slots;
+    int mask = slots.length() - 1;
+    for(int i=table.getSlotIndex(instanceID); ; i=(i + 1) & mask) {
+      Entry entry = slots.get(i);
+      if(entry == null) {
+        return;
+      }
+      if(entry != REMOVED_ENTRY && entry.instanceID == instanceID) {
+        if(expectedEntry == null || entry == expectedEntry) {
+          slots.set(i, REMOVED_ENTRY);
+          entryCount.decrementAndGet();
+        }
+        return;
+      }
+    }
+  }
+
+  private void removeEntry(Entry entry) {
+    removeEntry(entry.instanceID, entry);
+  }
+
   /**
    * Add an object to the registry.
    * @param o the object to add.
    * @return an unused instance ID that is strictly greater than 0.
    */
   public int add(Object o) {
+    removeCollectedEntries();
     boolean isStartingThread = false;
     int instanceID;
     synchronized (this) {
       while(true) {
         instanceID = nextInstanceID++;
-        if(!instanceIDToObjectReferenceMap.containsKey(instanceID)) {
+        if(getEntry(instanceID) == null) {
           if(o != null) {
-            instanceIDToObjectReferenceMap.put(instanceID, new WeakReference<Object>(o));
+            putEntry(new Entry(this, instanceID, o, referenceQueue));
             isStartingThread = true;
           }
           break;
@@ -103,7 +262,7 @@ public class ObjectRegistry {
       }
     }
     if(isStartingThread) {
-      startThread(this);
+      startThread();
     }
     return instanceID;
   }
@@ -114,28 +273,34 @@ public class ObjectRegistry {
    * @param instanceID the ID to associate the object to.
    */
   public void add(Object o, int instanceID) {
+    removeCollectedEntries();
     synchronized (this) {
       Object o2 = get(instanceID);
       if(o2 != null && o2 != o) {
         throw new IllegalStateException("An object is already registered with the id \"" + instanceID + "\" for object: " + o);
       }
-      instanceIDToObjectReferenceMap.put(instanceID, new WeakReference<Object>(o));
+      if(o == null) {
+        // A null object is not registered, like an object that was garbage collected.
+        removeEntry(instanceID, null);
+        return;
+      }
+      putEntry(new Entry(this, instanceID, o, referenceQueue));
     }
-    startThread(this);
+    startThread();
   }
 
   /**
    * Get an object using its ID.
    * @return the object, or null.
    */
-  public synchronized Object get(int instanceID) {
-    WeakReference<Object> weakReference = instanceIDToObjectReferenceMap.get(instanceID);
-    if(weakReference == null) {
+  public Object get(int instanceID) {
+    Entry entry = getEntry(instanceID);
+    if(entry == null) {
       return null;
     }
-    Object o = weakReference.get();
+    Object o = entry.get();
     if(o == null) {
-      instanceIDToObjectReferenceMap.remove(instanceID);
+      removeEntry(entry);
     }
     return o;
   }
@@ -144,21 +309,25 @@ public class ObjectRegistry {
    * Remove an object from the registry using its instance ID.
    * @param instanceID the ID of the object to remove.
    */
-  public synchronized void remove(int instanceID) {
-    instanceIDToObjectReferenceMap.remove(instanceID);
+  public void remove(int instanceID) {
+    removeEntry(instanceID, null);
   }
 
   /**
    * Get all the instance IDs that are used in this registry.
    * @return the instance IDs.
    */
-  public synchronized int[] getInstanceIDs() {
-    Object[] instanceIDObjects = instanceIDToObjectReferenceMap.keySet().toArray();
-    int[] instanceIDs = new int[instanceIDObjects.length];
-    for(int i=0; i<instanceIDObjects.length; i++) {
-      instanceIDs[i] = (Integer)instanceIDObjects[i];
+  public int[] getInstanceIDs() {
+    AtomicReferenceArray<Entry> slots = table.slots;
+    int[] instanceIDs = new int[slots.length()];
+    int count = 0;
+    for(int i=0; i<slots.length(); i++) {
+      Entry entry = slots.get(i);
+      if(entry != null && entry != REMOVED_ENTRY && entry.get() != null) {
+        instanceIDs[count++] = entry.instanceID;
+      }
     }
-    return instanceIDs;
+    return Arrays.copyOf(instanceIDs, count);
   }
 
   private static ObjectRegistry registry = new ObjectRegistry();
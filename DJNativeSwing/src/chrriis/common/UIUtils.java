@@ -324,6 +324,81 @@ public class UIUtils {
     return bounds;
   }
 
+  /**
+   * Coalesce rectangles into a set of non-overlapping rectangles covering the same area. The area is split in horizontal bands, the ranges of each band are merged, and identical adjacent bands are merged vertically.
+   * @param rectangles the rectangles to coalesce.
+   * @return the coalesced rectangles, sorted by y then x, which is usually a smaller set than the original.
+   */
+  public static Rectangle[] coalesce(Rectangle[] rectangles) {
+    if(rectangles.length <= 1) {
+      return rectangles;
+    }
+    int[] edges = new int[rectangles.length * 2];
+    int edgeCount = 0;
+    for(Rectangle r: rectangles) {
+      if(!r.isEmpty()) {
+        edges[edgeCount++] = r.y;
+        edges[edgeCount++] = r.y + r.height;
+      }
+    }
+    Arrays.sort(edges, 0, edgeCount);
+    List<Rectangle> resultList = new ArrayList<Rectangle>();
+    List<Rectangle> openList = new ArrayList<Rectangle>();
+    int[] ranges = new int[rectangles.length * 2];
+    int[] bandRanges = new int[rectangles.length * 2];
+    for(int i=1; i<edgeCount; i++) {
+      int y1 = edges[i - 1];
+      int y2 = edges[i];
+      if(y1 == y2) {
+        continue;
+      }
+      // Collect the horizontal ranges crossing this band, sorted by their start.
+      int rangeCount = 0;
+      for(Rectangle r: rectangles) {
+        if(!r.isEmpty() && r.y <= y1 && r.y + r.height >= y2) {
+          int x1 = r.x;
+          int x2 = r.x + r.width;
+          int j = rangeCount;
+          for(; j>0 && ranges[j - 2] > x1; j-=2) {
+            ranges[j] = ranges[j - 2];
+            ranges[j + 1] = ranges[j - 1];
+          }
+          ranges[j] = x1;
+          ranges[j + 1] = x2;
+          rangeCount += 2;
+        }
+      }
+      // Merge the overlapping or adjacent ranges.
+      int bandRangeCount = 0;
+      for(int j=0; j<rangeCount; j+=2) {
+        if(bandRangeCount > 0 && ranges[j] <= bandRanges[bandRangeCount - 1]) {
+          bandRanges[bandRangeCount - 1] = Math.max(bandRanges[bandRangeCount - 1], ranges[j + 1]);
+        } else {
+          bandRanges[bandRangeCount++] = ranges[j];
+          bandRanges[bandRangeCount++] = ranges[j + 1];
+        }
+      }
+      boolean isSameAsOpen = openList.size() * 2 == bandRangeCount && !openList.isEmpty() && openList.get(0).y + openList.get(0).height == y1;
+      for(int j=0; isSameAsOpen && j<bandRangeCount; j+=2) {
+        Rectangle r = openList.get(j / 2);
+        isSameAsOpen = r.x == bandRanges[j] && r.x + r.width == bandRanges[j + 1];
+      }
+      if(isSameAsOpen) {
+        for(Rectangle r: openList) {
+          r.height = y2 - r.y;
+        }
+      } else {
+        resultList.addAll(openList);
+        openList.clear();
+        for(int j=0; j<bandRangeCount; j+=2) {
+          openList.add(new Rectangle(bandRanges[j], y1, bandRanges[j + 1] - bandRanges[j], y2 - y1));
+        }
+      }
+    }
+    resultList.addAll(openList);
+    return resultList.toArray(new Rectangle[0]);
+  }
+
   public static void setPreferredLookAndFeel() {
     try {
       String systemLookAndFeelClassName = UIManager.getSystemLookAndFeelClassName();
@@ -9,25 +9,91 @@ package chrriis.common;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.JarURLConnection;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.jar.JarEntry;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import chrriis.dj.nativeswing.NSSystemProperty;
 
@@ -41,10 +107,44 @@ public class WebServer {
       this.headerMap = headerMap == null? new HashMap<String, String>(): headerMap;
       setURLPath(urlPath);
     }
+    /**
+     * @param headers the names and values of the headers in pairs, from which the header map is only created when it is requested.
+     */
+    HTTPRequest(String urlPath, String[] headers) {
+      this.headers = headers;
+      setURLPath(urlPath);
+    }
+    private String[] headers;
     private Map<String, String> headerMap;
     public Map<String, String> getHeaderMap() {
+      if(headerMap == null) {
+        headerMap = new HashMap<String, String>();
+        for(int i=0; i<headers.length; i += 2) {
+          headerMap.put(headers[i], headers[i + 1]);
+        }
+      }
       return headerMap;
     }
+    /**
+     * Get the value of a header, ignoring the case of its name.
+     */
+    String getHeader(String name) {
+      if(headerMap == null) {
+        // The last occurrence wins, like in the map.
+        for(int i=headers.length - 2; i>=0; i -= 2) {
+          if(name.equalsIgnoreCase(headers[i])) {
+            return headers[i + 1];
+          }
+        }
+        return null;
+      }
+      for(Map.Entry<String, String> entry: headerMap.entrySet()) {
+        if(name.equalsIgnoreCase(entry.getKey())) {
+          return entry.getValue();
+        }
+      }
+      return null;
+    }
     private String endQuery = "";
     private String urlPath;
     void setURLPath(String urlPath) {
@@ -126,12 +226,54 @@ public class WebServer {
       return headerMap;
     }
     private byte[] bytes;
+    /**
+     * Get the bytes of the data. Large data is kept in a temporary file while the request is processed, in which case it is read by this call:
+     * prefer the input stream for such data.
+     */
     public byte[] getBytes() {
+      if(bytes == null && file != null) {
+        try {
+          byte[] bytes = new byte[(int)file.length()];
+          InputStream in = new FileInputStream(file);
+          try {
+            WebServerConnectionThread.readFully(in, bytes);
+          } finally {
+            in.close();
+          }
+          return bytes;
+        } catch(IOException e) {
+          e.printStackTrace();
+        }
+      }
       return bytes;
     }
     void setBytes(byte[] bytes) {
       this.bytes = bytes;
     }
+    private File file;
+    void setFile(File file) {
+      this.file = file;
+    }
+    /**
+     * Get a stream to read the data, which is available while the request is processed.
+     */
+    public InputStream getInputStream() {
+      if(file != null) {
+        try {
+          return new FileInputStream(file);
+        } catch(IOException e) {
+          e.printStackTrace();
+          return null;
+        }
+      }
+      return bytes == null? null: new ByteArrayInputStream(bytes);
+    }
+    void dispose() {
+      if(file != null) {
+        file.delete();
+        file = null;
+      }
+    }
   }
 
   public static abstract class WebServerContent {
@@ -164,322 +306,4111 @@ public class WebServer {
     public long getLastModified() {
       return System.currentTimeMillis();
     }
+    /**
+     * Get a tag identifying the version of the content, so that clients can revalidate their cached copy. When a tag is returned, the last modification time must reflect the content too.
+     * @return the entity tag including its quotes, or null if the content cannot be revalidated.
+     */
+    public String getETag() {
+      return null;
+    }
+    /**
+     * @return the value of the Cache-Control header for this content, or null to not send that header.
+     */
+    public String getCacheControl() {
+      return null;
+    }
+    /**
+     * Get the local file that holds the content, if any. The web server can then send the file directly to the connection instead of reading the
+     * input stream.
+     * @return the file, or null if the content is not a local file.
+     */
+    public File getFile() {
+      return null;
+    }
 
   }
 
-  private static class WebServerConnectionThread extends Thread {
+  /**
+   * A content that is written by the web server to the connection instead of being read from a stream, so that large generated content does not
+   * need to be held in memory. When the length is not known, the content is sent in chunks to HTTP/1.1 clients.
+   */
+  public static abstract class WebServerOutputContent extends WebServerContent {
 
-    private static int threadInitNumber;
-    private static Semaphore semaphore = new Semaphore(10);
+    /**
+     * Write the content. The stream does not need to be closed.
+     */
+    public abstract void writeContent(OutputStream out) throws IOException;
 
-    private static synchronized int nextThreadNumber() {
-      return threadInitNumber++;
+    /**
+     * Get the content as a stream, by writing it to memory. The web server only uses this method when it needs to read a part of the content.
+     */
+    @Override
+    public InputStream getInputStream() {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      try {
+        writeContent(baos);
+      } catch(Exception e) {
+        e.printStackTrace();
+        return null;
+      }
+      return new ByteArrayInputStream(baos.toByteArray());
     }
 
-    private Socket socket;
+  }
 
-    public WebServerConnectionThread(Socket socket) {
-      super("WebServer Connection-" + nextThreadNumber());
-      this.socket = socket;
-      setDaemon(true);
-    }
+  /**
+   * The metadata of a resource located by a URL, taken from its jar entry or its file when possible.
+   */
+  private static class ResourceMetadata {
 
-    private static final String LS = Utils.LINE_SEPARATOR;
+    private long contentLength = -1;
+    private long lastModified = -1;
+    private String eTag;
+    private boolean isArchived;
 
-    static void writeHTTPHeaders(BufferedOutputStream out, int code, String contentType, long contentLength, long lastModified) {
-      StringBuilder sb = new StringBuilder();
-      sb.append("HTTP/1.0 " + code + " OK" + LS);
-      sb.append("Content-Type: " + contentType + LS);
-      sb.append("Server: WebServer/1.0" + LS);
-      sb.append("Date: " + new Date() + LS);
-//      sb.append("Expires: " + new Date() + LS);
-//      sb.append("Last-modified: " + new Date(lastModified) + LS);
-      if(contentLength != -1) {
-        sb.append("Content-Length: " + contentLength + LS);
-      }
-      sb.append(LS);
+    public static ResourceMetadata getResourceMetadata(URL url) {
+      ResourceMetadata metadata = new ResourceMetadata();
       try {
-        out.write(sb.toString().getBytes("UTF-8"));
-      } catch(IOException e) {
+        if("jar".equals(url.getProtocol())) {
+          URLConnection connection = url.openConnection();
+          if(connection instanceof JarURLConnection) {
+            JarEntry jarEntry = ((JarURLConnection)connection).getJarEntry();
+            if(jarEntry != null) {
+              metadata.isArchived = true;
+              metadata.contentLength = jarEntry.getSize();
+              metadata.lastModified = jarEntry.getTime();
+              long crc = jarEntry.getCrc();
+              metadata.eTag = "\"" + (crc == -1? Long.toHexString(metadata.contentLength): Long.toHexString(crc)) + "-" + Long.toHexString(metadata.lastModified) + "\"";
+            }
+          }
+        } else {
+          File file = Utils.getLocalFile(url.toExternalForm());
+          if(file != null && file.isFile()) {
+            metadata.contentLength = file.length();
+            metadata.lastModified = file.lastModified();
+            metadata.eTag = "\"" + Long.toHexString(metadata.contentLength) + "-" + Long.toHexString(metadata.lastModified) + "\"";
+          }
+        }
+      } catch(FileNotFoundException e) {
+        // The metadata is empty.
+      } catch(Exception e) {
         e.printStackTrace();
       }
+      return metadata;
+    }
+
+  }
+
+  /**
+   * A zip archive of resources, mapped in memory. The central directory is read once to build an index of the entries, and the content of the
+   * entries is then read from the mapped region without going through the class loaders.
+   */
+  private static class ResourceArchive {
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static class ArchiveEntry {
+      private int method;
+      private long crc;
+      private long compressedSize;
+      private long size;
+      private long lastModified;
+      private int localHeaderOffset;
+      private int dataOffset = -1;
     }
 
-    static void writeHTTPError(BufferedOutputStream out, int code, String message) {
-      writeHTTPHeaders(out, code, "text/html", message.length(), System.currentTimeMillis());
+    private File file;
+    private ByteBuffer buffer;
+    private Map<String, ArchiveEntry> entryMap = new HashMap<String, ArchiveEntry>();
+
+    public ResourceArchive(File file) throws IOException {
+      this.file = file;
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
       try {
-        out.write(message.getBytes("UTF-8"));
-        out.flush();
-        out.close();
-      } catch(IOException e) {
-//        e.printStackTrace();
+        FileChannel fileChannel = randomAccessFile.getChannel();
+        long length = fileChannel.size();
+        if(length > Integer.MAX_VALUE) {
+          throw new IOException("The archive is too large: " + file);
+        }
+        // The mapping stays valid after the channel is closed.
+        buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+      } finally {
+        randomAccessFile.close();
       }
+      readCentralDirectory();
     }
 
-    private static class HTTPInputStream extends InputStream {
-      static enum LineSeparator {
-        CR,
-        LF,
-        CRLF,
+    private void readCentralDirectory() throws IOException {
+      int end = -1;
+      for(int i=buffer.limit() - 22, min=Math.max(0, i - 0xFFFF); i>=min; i--) {
+        if(buffer.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+          end = i;
+          break;
+        }
       }
-      private InputStream inputStream;
-      public HTTPInputStream(InputStream inputStream) {
-        this.inputStream = inputStream;
+      if(end == -1) {
+        throw new IOException("Not a zip archive: " + file);
       }
-      public String getLineSeparator() {
-        switch(lineSeparator) {
-          case CR: return "\r";
-          case LF: return "\n";
-          case CRLF: return "\r\n";
-        }
-        return null;
+      int entryCount = buffer.getShort(end + 10) & 0xFFFF;
+      long offset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+      if(entryCount == 0xFFFF || offset == 0xFFFFFFFFL) {
+        throw new IOException("ZIP64 archives are not supported: " + file);
       }
-      private LineSeparator lineSeparator;
-      private int lastByte = -1;
-      public String readAsciiLine() throws IOException {
-        if(lineSeparator == null) {
-          ByteArrayOutputStream baos = new ByteArrayOutputStream();
-          while(true) {
-            int b = read();
-            if(b == -1) {
-              return null;
-            }
-            if(b == '\n') {
-              lineSeparator = LineSeparator.LF;
-              return new String(baos.toByteArray(), "UTF-8");
-            }
-            if(b == '\r') {
-              int b2 = read();
-              if(b2 == '\n') {
-                lineSeparator = LineSeparator.CRLF;
-              } else {
-                lineSeparator = LineSeparator.CR;
-                if(b2 != -1) {
-                  lastByte = b2;
-                }
-              }
-              return new String(baos.toByteArray(), "UTF-8");
-            }
-            baos.write(b);
-          }
+      Calendar calendar = Calendar.getInstance();
+      int position = (int)offset;
+      for(int i=0; i<entryCount; i++) {
+        if(buffer.getInt(position) != CENTRAL_DIRECTORY_SIGNATURE) {
+          throw new IOException("Invalid central directory in archive: " + file);
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        if(lastByte != -1) {
-          baos.write(lastByte);
-          lastByte = -1;
+        int flags = buffer.getShort(position + 8) & 0xFFFF;
+        int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+        int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+        int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+        byte[] nameBytes = new byte[nameLength];
+        ByteBuffer nameBuffer = buffer.duplicate();
+        nameBuffer.position(position + 46);
+        nameBuffer.get(nameBytes);
+        String name = new String(nameBytes, "UTF-8");
+        // Encrypted entries and directories cannot be served.
+        if((flags & 1) == 0 && !name.endsWith("/")) {
+          ArchiveEntry entry = new ArchiveEntry();
+          entry.method = buffer.getShort(position + 10) & 0xFFFF;
+          int time = buffer.getShort(position + 12) & 0xFFFF;
+          int date = buffer.getShort(position + 14) & 0xFFFF;
+          calendar.clear();
+          calendar.set(((date >> 9) & 0x7F) + 1980, ((date >> 5) & 0x0F) - 1, date & 0x1F, (time >> 11) & 0x1F, (time >> 5) & 0x3F, (time & 0x1F) * 2);
+          entry.lastModified = calendar.getTimeInMillis();
+          entry.crc = buffer.getInt(position + 16) & 0xFFFFFFFFL;
+          entry.compressedSize = buffer.getInt(position + 20) & 0xFFFFFFFFL;
+          entry.size = buffer.getInt(position + 24) & 0xFFFFFFFFL;
+          entry.localHeaderOffset = buffer.getInt(position + 42);
+          if(entry.method == ZipEntry.STORED || entry.method == ZipEntry.DEFLATED) {
+            entryMap.put(name, entry);
+          }
         }
-        switch(lineSeparator) {
-          case CR:
-            for(int b; (b=read()) != '\r' && b != -1; baos.write(b)) {
-            }
-            break;
-          case LF:
-            for(int b; (b=read()) != '\n' && b != -1; baos.write(b)) {
-            }
-            break;
-          case CRLF:
-            for(int b; (b=read()) != '\r' && b != -1; baos.write(b)) {
-            }
-            read();
-            break;
+        position += 46 + nameLength + extraLength + commentLength;
+      }
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public ArchiveEntry getEntry(String name) {
+      return entryMap.get(name);
+    }
+
+    /**
+     * @return the region of the archive holding the data of the entry, as it is stored.
+     */
+    private ByteBuffer getData(ArchiveEntry entry) throws IOException {
+      if(entry.dataOffset == -1) {
+        int offset = entry.localHeaderOffset;
+        if(buffer.getInt(offset) != LOCAL_HEADER_SIGNATURE) {
+          throw new IOException("Invalid local header in archive: " + file);
         }
-        return new String(baos.toByteArray(), "UTF-8");
+        entry.dataOffset = offset + 30 + (buffer.getShort(offset + 26) & 0xFFFF) + (buffer.getShort(offset + 28) & 0xFFFF);
       }
-      @Override
-      public void close() throws IOException {
-        inputStream.close();
+      ByteBuffer data = buffer.duplicate();
+      data.limit(entry.dataOffset + (int)entry.compressedSize);
+      data.position(entry.dataOffset);
+      return data.slice();
+    }
+
+    public InputStream getInputStream(ArchiveEntry entry) throws IOException {
+      InputStream in = new ByteBufferInputStream(getData(entry));
+      if(entry.method == ZipEntry.DEFLATED) {
+        final Inflater inflater = new Inflater(true);
+        in = new InflaterInputStream(in, inflater, 8192) {
+          @Override
+          public void close() throws IOException {
+            super.close();
+            inflater.end();
+          }
+        };
       }
-      @Override
-      public int read(byte[] b) throws IOException {
-        return inputStream.read(b);
+      return in;
+    }
+
+    /**
+     * Get the entry as gzip data. A deflated entry only needs a header and a trailer around its data, which are taken from the mapped region.
+     * @return the gzip stream, or null if the entry is not deflated.
+     */
+    public InputStream getGZipInputStream(ArchiveEntry entry) throws IOException {
+      if(entry.method != ZipEntry.DEFLATED) {
+        return null;
       }
-      @Override
-      public int read(byte[] b, int off, int len) throws IOException {
-        return inputStream.read(b, off, len);
+      byte[] header = new byte[] {0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+      byte[] trailer = new byte[8];
+      for(int i=0; i<4; i++) {
+        trailer[i] = (byte)(entry.crc >> (i * 8));
+        trailer[4 + i] = (byte)(entry.size >> (i * 8));
       }
-      @Override
-      public int read() throws IOException {
-        int n = inputStream.read();
-        return n;
+      return new SequenceInputStream(new ByteArrayInputStream(header), new SequenceInputStream(new ByteBufferInputStream(getData(entry)), new ByteArrayInputStream(trailer)));
+    }
+
+    public static long getGZipLength(ArchiveEntry entry) {
+      return entry.method == ZipEntry.DEFLATED? 10 + entry.compressedSize + 8: -1;
+    }
+
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private ByteBuffer buffer;
+    public ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+    @Override
+    public int read() throws IOException {
+      return buffer.hasRemaining()? buffer.get() & 0xFF: -1;
+    }
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if(len == 0) {
+        return 0;
+      }
+      if(!buffer.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
+    }
+    @Override
+    public long skip(long n) throws IOException {
+      n = Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + (int)n);
+      return n;
+    }
+    @Override
+    public int available() throws IOException {
+      return buffer.remaining();
+    }
+  }
+
+  /**
+   * The content of an entry of a mounted resource archive.
+   */
+  private static class ArchiveResourceContent extends WebServerContent {
+
+    private ResourceArchive archive;
+    private String name;
+    private ResourceArchive.ArchiveEntry entry;
+
+    public ArchiveResourceContent(ResourceArchive archive, String name, ResourceArchive.ArchiveEntry entry) {
+      this.archive = archive;
+      this.name = name;
+      this.entry = entry;
+    }
+
+    /**
+     * Get the content in a content encoding, when it is available without compressing it: from a pre-compressed sibling entry (like
+     * "script.js.gz") or from the data of a deflated entry.
+     * @return the encoded stream, or null if the content has to be encoded on the fly.
+     */
+    public InputStream getEncodedInputStream(String encoding) throws IOException {
+      if(!"gzip".equals(encoding)) {
+        return null;
+      }
+      ResourceArchive.ArchiveEntry gzipEntry = archive.getEntry(name + ".gz");
+      if(gzipEntry != null && gzipEntry.size < entry.size) {
+        return archive.getInputStream(gzipEntry);
       }
+      return archive.getGZipInputStream(entry);
+    }
+
+    /**
+     * @return the length of the stream returned for that encoding.
+     */
+    public long getEncodedContentLength(String encoding) {
+      ResourceArchive.ArchiveEntry gzipEntry = archive.getEntry(name + ".gz");
+      if(gzipEntry != null && gzipEntry.size < entry.size) {
+        return gzipEntry.size;
+      }
+      return ResourceArchive.getGZipLength(entry);
     }
 
     @Override
-    public void run() {
+    public String getContentType() {
+      int index = name.lastIndexOf('.');
+      return getDefaultMimeType(index == -1? null: name.substring(index));
+    }
+
+    @Override
+    public long getContentLength() {
+      return entry.size;
+    }
+
+    @Override
+    public long getLastModified() {
+      return entry.lastModified;
+    }
+
+    @Override
+    public String getETag() {
+      return "\"" + Long.toHexString(entry.crc) + "-" + Long.toHexString(entry.lastModified) + "\"";
+    }
+
+    @Override
+    public String getCacheControl() {
+      // Like the jars of the class path, the archives do not change while they are mounted.
+      return "public, max-age=31536000, immutable";
+    }
+
+    @Override
+    public InputStream getInputStream() {
       try {
-        HTTPInputStream in = new HTTPInputStream(new BufferedInputStream(socket.getInputStream()));
-        BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream());
-        try {
-          String request = in.readAsciiLine();
-          if(request == null || !(request.endsWith(" HTTP/1.0") || request.endsWith("HTTP/1.1"))) {
-            writeHTTPError(out, 500, "Invalid Method.");
-            return;
-          }
-          boolean isPostMethod = false;
-          if(request.startsWith("POST ")) {
-            isPostMethod = true;
-          } else if(!request.startsWith("GET ")) {
-            writeHTTPError(out, 500, "Invalid Method.");
-            return;
+        return archive.getInputStream(entry);
+      } catch(Exception e) {
+        e.printStackTrace();
+        return null;
+      }
+    }
+
+  }
+
+  /**
+   * A cache of class path resources, limited to a number of bytes and evicting the least recently used resources first. Concurrent requests for a
+   * resource that is not cached yet wait for a single load.
+   */
+  private static class ResourceCache {
+
+    private static class Key {
+
+      private Object classLoader;
+      private String resourcePath;
+
+      public Key(Object classLoader, String resourcePath) {
+        this.classLoader = classLoader;
+        this.resourcePath = resourcePath;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if(!(o instanceof Key)) {
+          return false;
+        }
+        Key key = (Key)o;
+        return classLoader == key.classLoader && resourcePath.equals(key.resourcePath);
+      }
+
+      @Override
+      public int hashCode() {
+        return System.identityHashCode(classLoader) * 31 + resourcePath.hashCode();
+      }
+
+    }
+
+    static class CachedResource {
+
+      private Key key;
+      private URL url;
+      private ResourceMetadata metadata;
+      private byte[] bytes;
+      private Map<String, byte[]> encodedBytesMap;
+
+      public URL getURL() {
+        return url;
+      }
+
+      public ResourceMetadata getMetadata() {
+        return metadata;
+      }
+
+      /**
+       * @return the bytes of the resource, or null if the resource is too big to be cached.
+       */
+      public byte[] getBytes() {
+        return bytes;
+      }
+
+    }
+
+    private long maxSize;
+    private long size;
+    private Map<Key, CachedResource> cachedResourceMap = new LinkedHashMap<Key, CachedResource>(16, 0.75f, true);
+    private ConcurrentHashMap<Key, FutureTask<CachedResource>> loadingMap = new ConcurrentHashMap<Key, FutureTask<CachedResource>>();
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+
+    public ResourceCache(long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * Get a resource from the first class loader that has it, or from the class loader of the web server.
+     * @return the resource, which bytes are null if it is too big to be cached, or null if it does not exist.
+     */
+    public CachedResource getResource(List<ClassLoader> classLoaderList, String resourcePath) {
+      synchronized(this) {
+        for(ClassLoader classLoader: classLoaderList) {
+          CachedResource cachedResource = cachedResourceMap.get(new Key(classLoader, resourcePath));
+          if(cachedResource != null) {
+            hitCount.incrementAndGet();
+            return cachedResource;
           }
-          String resourcePath = request.substring((isPostMethod? "POST ": "GET ").length(), request.length() - " HTTP/1.0".length());
-          Map<String, String> headerMap = new HashMap<String, String>();
-          for(String header; (header = in.readAsciiLine()).length() > 0; ) {
-            int index = header.indexOf(": ");
-            if(index > 0) {
-              headerMap.put(header.substring(0, index), header.substring(index + ": ".length()));
-            }
-          }
-          HTTPRequest httpRequest = new HTTPRequest(resourcePath, headerMap);
-          httpRequest.setPostMethod(isPostMethod);
-          if(isPostMethod) {
-            HTTPData[] httpDataArray;
-            String contentType = headerMap.get("Content-Type");
-            String contentLengthString = headerMap.get("Content-Length");
-            int contentLength = contentLengthString == null? -1: Integer.parseInt(contentLengthString);
-            if(contentType != null && contentType.startsWith("multipart/")) {
-              byte[] dataBytes;
-              if(contentLength > 0) {
-                dataBytes = new byte[contentLength];
-                in.read(dataBytes);
-              } else {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                byte[] bytes = new byte[1024];
-                for(int i; (i=in.read(bytes)) != -1; baos.write(bytes, 0, i)) {
-                }
-                dataBytes = baos.toByteArray();
-              }
-              String boundary = "--" + contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
-              byte[] boundaryBytes = boundary.getBytes("UTF-8");
-              List<Integer> indexList = new ArrayList<Integer>();
-              for(int i=0; i<dataBytes.length - boundaryBytes.length; i++) {
-                boolean isFound = true;
-                for(int j=0; j<boundaryBytes.length; j++) {
-                  if(dataBytes[i + j] != boundaryBytes[j]) {
-                    isFound = false;
-                    break;
-                  }
-                }
-                if(isFound) {
-                  indexList.add(i);
-                  i += boundaryBytes.length;
-                }
+        }
+        CachedResource cachedResource = cachedResourceMap.get(new Key(WebServer.class, resourcePath));
+        if(cachedResource != null) {
+          hitCount.incrementAndGet();
+          return cachedResource;
+        }
+      }
+      missCount.incrementAndGet();
+      Object owner = null;
+      URL url = null;
+      for(ClassLoader classLoader: classLoaderList) {
+        url = classLoader.getResource(resourcePath);
+        if(url != null) {
+          owner = classLoader;
+          break;
+        }
+      }
+      if(url == null) {
+        url = WebServer.class.getResource('/' + resourcePath);
+        owner = WebServer.class;
+      }
+      if(url == null) {
+        return null;
+      }
+      return load(new Key(owner, resourcePath), url);
+    }
+
+    private CachedResource load(final Key key, final URL url) {
+      FutureTask<CachedResource> loadingTask = new FutureTask<CachedResource>(new Callable<CachedResource>() {
+        public CachedResource call() throws Exception {
+          synchronized(ResourceCache.this) {
+            // Another load of the resource may have completed since the lookup.
+            CachedResource cachedResource = cachedResourceMap.get(key);
+            if(cachedResource != null) {
+              return cachedResource;
+            }
+          }
+          CachedResource cachedResource = new CachedResource();
+          cachedResource.key = key;
+          cachedResource.url = url;
+          cachedResource.metadata = ResourceMetadata.getResourceMetadata(url);
+          long contentLength = cachedResource.metadata.contentLength;
+          if(!cachedResource.metadata.isArchived || contentLength < 0 || contentLength > maxSize / 4) {
+            // Files may be edited, and unknown or big resources would take too much memory: such resources are streamed from their URL.
+            return cachedResource;
+          }
+          byte[] bytes = new byte[(int)contentLength];
+          InputStream in = url.openStream();
+          try {
+            WebServerConnectionThread.readFully(in, bytes);
+          } finally {
+            in.close();
+          }
+          cachedResource.bytes = bytes;
+          synchronized(ResourceCache.this) {
+            put(cachedResource);
+          }
+          return cachedResource;
+        }
+      });
+      FutureTask<CachedResource> existingLoadingTask = loadingMap.putIfAbsent(key, loadingTask);
+      if(existingLoadingTask == null) {
+        try {
+          loadingTask.run();
+        } finally {
+          loadingMap.remove(key);
+        }
+      } else {
+        loadingTask = existingLoadingTask;
+      }
+      try {
+        return loadingTask.get();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch(ExecutionException e) {
+        e.getCause().printStackTrace();
+      }
+      // The resource is served without caching.
+      CachedResource cachedResource = new CachedResource();
+      cachedResource.key = key;
+      cachedResource.url = url;
+      cachedResource.metadata = new ResourceMetadata();
+      return cachedResource;
+    }
+
+    private void put(CachedResource cachedResource) {
+      CachedResource oldCachedResource = cachedResourceMap.put(cachedResource.key, cachedResource);
+      if(oldCachedResource != null) {
+        size -= getSize(oldCachedResource);
+      }
+      size += getSize(cachedResource);
+      for(Iterator<CachedResource> it = cachedResourceMap.values().iterator(); size > maxSize && it.hasNext(); ) {
+        CachedResource eldestCachedResource = it.next();
+        it.remove();
+        size -= getSize(eldestCachedResource);
+      }
+    }
+
+    private static long getSize(CachedResource cachedResource) {
+      long size = cachedResource.bytes == null? 0: cachedResource.bytes.length;
+      if(cachedResource.encodedBytesMap != null) {
+        for(byte[] bytes: cachedResource.encodedBytesMap.values()) {
+          size += bytes.length;
+        }
+      }
+      return size;
+    }
+
+    /**
+     * @return the bytes of the resource in the given content encoding (like "gzip"), or null if they are not cached.
+     */
+    public synchronized byte[] getEncodedBytes(CachedResource cachedResource, String encoding) {
+      return cachedResource.encodedBytesMap == null? null: cachedResource.encodedBytesMap.get(encoding);
+    }
+
+    /**
+     * Cache the bytes of the resource in a content encoding, alongside its plain bytes.
+     */
+    public synchronized void putEncodedBytes(CachedResource cachedResource, String encoding, byte[] encodedBytes) {
+      if(cachedResourceMap.get(cachedResource.key) != cachedResource) {
+        // The resource was evicted.
+        return;
+      }
+      size -= getSize(cachedResource);
+      if(cachedResource.encodedBytesMap == null) {
+        cachedResource.encodedBytesMap = new HashMap<String, byte[]>(2);
+      }
+      cachedResource.encodedBytesMap.put(encoding, encodedBytes);
+      cachedResourceMap.remove(cachedResource.key);
+      put(cachedResource);
+    }
+
+    /**
+     * Remove the resources that were loaded from a class loader.
+     */
+    public synchronized void invalidate(ClassLoader classLoader) {
+      for(Iterator<CachedResource> it = cachedResourceMap.values().iterator(); it.hasNext(); ) {
+        CachedResource cachedResource = it.next();
+        if(cachedResource.key.classLoader == classLoader) {
+          it.remove();
+          size -= getSize(cachedResource);
+        }
+      }
+    }
+
+    public long getHitCount() {
+      return hitCount.get();
+    }
+
+    public long getMissCount() {
+      return missCount.get();
+    }
+
+    public synchronized long getSize() {
+      return size;
+    }
+
+    public long getMaxSize() {
+      return maxSize;
+    }
+
+  }
+
+  /**
+   * A content backed by a resource URL, which can be revalidated by clients when the resource is a jar entry or a file.
+   */
+  private static class URLResourceContent extends WebServerContent {
+
+    private URL url;
+    private ResourceMetadata metadata;
+    private byte[] bytes;
+    private boolean isClasspathResource;
+
+    public URLResourceContent(URL url, boolean isClasspathResource) {
+      this.url = url;
+      this.isClasspathResource = isClasspathResource;
+    }
+
+    private ResourceCache resourceCache;
+    private ResourceCache.CachedResource cachedResource;
+
+    public URLResourceContent(ResourceCache resourceCache, ResourceCache.CachedResource cachedResource) {
+      this.url = cachedResource.getURL();
+      this.metadata = cachedResource.getMetadata();
+      this.bytes = cachedResource.getBytes();
+      this.isClasspathResource = true;
+      this.resourceCache = resourceCache;
+      this.cachedResource = cachedResource;
+    }
+
+    /**
+     * Get the bytes of a cached content in a content encoding, from a pre-compressed sibling resource (like "script.js.gz") or by encoding them.
+     * The result is kept in the cache.
+     * @return the encoded bytes, or null if the content is not cached and has to be encoded on the fly.
+     */
+    public byte[] getEncodedBytes(String encoding) throws IOException {
+      if(bytes == null) {
+        return null;
+      }
+      byte[] encodedBytes = resourceCache.getEncodedBytes(cachedResource, encoding);
+      if(encodedBytes != null) {
+        return encodedBytes;
+      }
+      if("gzip".equals(encoding)) {
+        URL gzipURL = new URL(url.toExternalForm() + ".gz");
+        ResourceMetadata gzipMetadata = ResourceMetadata.getResourceMetadata(gzipURL);
+        if(gzipMetadata.contentLength >= 0 && gzipMetadata.contentLength < bytes.length) {
+          encodedBytes = new byte[(int)gzipMetadata.contentLength];
+          InputStream in = gzipURL.openStream();
+          try {
+            WebServerConnectionThread.readFully(in, encodedBytes);
+          } finally {
+            in.close();
+          }
+        }
+      }
+      if(encodedBytes == null) {
+        encodedBytes = WebServerConnectionThread.encode(bytes, encoding);
+      }
+      resourceCache.putEncodedBytes(cachedResource, encoding, encodedBytes);
+      return encodedBytes;
+    }
+
+    private ResourceMetadata getMetadata() {
+      if(metadata == null) {
+        metadata = url == null? new ResourceMetadata(): ResourceMetadata.getResourceMetadata(url);
+      }
+      return metadata;
+    }
+
+    @Override
+    public String getContentType() {
+      String path = url == null? "": url.getPath();
+      int index = path.lastIndexOf('.');
+      return getDefaultMimeType(index == -1? null: path.substring(index));
+    }
+
+    @Override
+    public long getContentLength() {
+      if(bytes != null) {
+        return bytes.length;
+      }
+      return getMetadata().contentLength;
+    }
+
+    @Override
+    public long getLastModified() {
+      ResourceMetadata metadata = getMetadata();
+      return metadata.lastModified > 0? metadata.lastModified: super.getLastModified();
+    }
+
+    @Override
+    public String getETag() {
+      return getMetadata().eTag;
+    }
+
+    @Override
+    public String getCacheControl() {
+      ResourceMetadata metadata = getMetadata();
+      if(metadata.eTag == null) {
+        return null;
+      }
+      if(isClasspathResource && metadata.isArchived) {
+        // The jars of the class path do not change while the application runs.
+        return "public, max-age=31536000, immutable";
+      }
+      // Files may be edited: clients have to revalidate their copy.
+      return "no-cache";
+    }
+
+    @Override
+    public File getFile() {
+      if(bytes != null || url == null || !"file".equals(url.getProtocol())) {
+        return null;
+      }
+      File file = Utils.getLocalFile(url.toExternalForm());
+      return file != null && file.isFile()? file: null;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      if(bytes != null) {
+        return new ByteArrayInputStream(bytes);
+      }
+      if(url == null) {
+        return null;
+      }
+      try {
+        return SharedLoad.openStream(url);
+      } catch(Exception e) {
+        e.printStackTrace();
+        return null;
+      }
+    }
+
+  }
+
+  /**
+   * A load of a resource that is shared by the concurrent requests for the same URL: the bytes are read once from the origin, and each request reads
+   * them at its own pace. The reader that needs bytes which are not loaded yet reads the next ones from the origin, so no thread is dedicated to the load.
+   */
+  private static class SharedLoad {
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+    /**
+     * The size after which requests stop joining a load, so that the bytes that all its readers have consumed can be released.
+     */
+    private static final long MAX_SHARED_SIZE = 8 * 1024 * 1024;
+    /**
+     * How far the fastest reader of a detached load may run ahead of the others. The readers that fall further behind leave the load and continue
+     * from their own connection to the origin, so that a stalled client does not keep the whole content in memory.
+     */
+    private static final long MAX_READER_LAG = 4 * 1024 * 1024;
+
+    private static final Map<String, SharedLoad> sharedLoadMap = new HashMap<String, SharedLoad>();
+    private static final AtomicLong joinCount = new AtomicLong();
+
+    /**
+     * Open a stream on the content of a URL, sharing the load of the remote and class path resources with the concurrent requests for the same URL.
+     * Remote resources go through the proxy cache when it is enabled.
+     */
+    public static InputStream openStream(URL url) throws IOException {
+      String protocol = url.getProtocol();
+      boolean isRemote = "http".equals(protocol) || "https".equals(protocol);
+      if(!isRemote && !"jar".equals(protocol)) {
+        return url.openStream();
+      }
+      ProxyCache proxyCache = isRemote? ProxyCache.getInstance(): null;
+      if(proxyCache != null) {
+        InputStream in = proxyCache.getFreshStream(url);
+        if(in != null) {
+          return in;
+        }
+      }
+      String key = url.toExternalForm();
+      SharedLoad sharedLoad;
+      Reader reader = null;
+      synchronized(sharedLoadMap) {
+        sharedLoad = sharedLoadMap.get(key);
+        if(sharedLoad != null) {
+          reader = sharedLoad.join();
+        }
+        if(reader == null) {
+          sharedLoad = new SharedLoad(key);
+          sharedLoadMap.put(key, sharedLoad);
+          reader = sharedLoad.join();
+        }
+      }
+      if(reader.isOwner) {
+        try {
+          InputStream in = proxyCache != null? proxyCache.openStream(url): url.openStream();
+          synchronized(sharedLoad) {
+            sharedLoad.in = in;
+            sharedLoad.notifyAll();
+          }
+        } catch(IOException e) {
+          sharedLoad.fail(e);
+          throw e;
+        } catch(RuntimeException e) {
+          sharedLoad.fail(new IOException(e.toString()));
+          throw e;
+        }
+      } else {
+        joinCount.incrementAndGet();
+        synchronized(sharedLoad) {
+          while(sharedLoad.in == null && sharedLoad.failure == null) {
+            try {
+              sharedLoad.wait();
+            } catch(InterruptedException e) {
+              reader.close();
+              Thread.currentThread().interrupt();
+              throw new IOException("Interrupted while opening " + key);
+            }
+          }
+          if(sharedLoad.failure != null) {
+            reader.close();
+            throw new IOException(sharedLoad.failure.getMessage());
+          }
+        }
+      }
+      return reader;
+    }
+
+    /**
+     * @return the number of requests that joined a load which was already in progress.
+     */
+    public static long getJoinCount() {
+      return joinCount.get();
+    }
+
+    private String key;
+    private InputStream in;
+    private IOException failure;
+    private boolean isComplete;
+    private boolean isFetching;
+    private boolean isDetached;
+    private boolean isAbandoned;
+    private List<byte[]> chunkList = new ArrayList<byte[]>();
+    private long size;
+    private List<Reader> readerList = new ArrayList<Reader>(2);
+
+    private SharedLoad(String key) {
+      this.key = key;
+    }
+
+    /**
+     * @return a reader of the load, which is the owner when it is the first one, or null if the load cannot be joined anymore.
+     */
+    private synchronized Reader join() {
+      if(isAbandoned || isDetached || isComplete || failure != null) {
+        return null;
+      }
+      Reader reader = new Reader();
+      reader.isOwner = readerList.isEmpty();
+      readerList.add(reader);
+      return reader;
+    }
+
+    /**
+     * Remove the load from the map, so that subsequent requests start their own load.
+     */
+    private void detach() {
+      synchronized(sharedLoadMap) {
+        if(sharedLoadMap.get(key) == this) {
+          sharedLoadMap.remove(key);
+        }
+      }
+      synchronized(this) {
+        isDetached = true;
+      }
+    }
+
+    private void fail(IOException e) {
+      detach();
+      synchronized(this) {
+        failure = e;
+        notifyAll();
+      }
+    }
+
+    /**
+     * Read the next bytes from the origin. Only one reader fetches at a time, and it does it without holding the lock so that the other readers can
+     * consume the bytes that are already loaded.
+     */
+    private void fetch() throws IOException {
+      byte[] chunk;
+      int offset;
+      synchronized(this) {
+        offset = (int)(size % CHUNK_SIZE);
+        if(offset == 0) {
+          chunkList.add(new byte[CHUNK_SIZE]);
+        }
+        chunk = chunkList.get(chunkList.size() - 1);
+      }
+      int n = 0;
+      boolean isOriginClosed = false;
+      boolean isClosingOrigin;
+      boolean isDetaching = false;
+      try {
+        // The bytes after the size are not visible to the readers, so they can be written without the lock.
+        n = in.read(chunk, offset, CHUNK_SIZE - offset);
+        if(n == -1) {
+          isOriginClosed = true;
+          closeOrigin();
+        }
+      } catch(IOException e) {
+        isOriginClosed = true;
+        closeOrigin();
+        fail(e);
+        throw e;
+      } finally {
+        synchronized(this) {
+          if(n == -1) {
+            isComplete = true;
+          } else {
+            size += n;
+            isDetaching = !isDetached && size > MAX_SHARED_SIZE;
+          }
+          isFetching = false;
+          // The last reader may have closed during the read, leaving the origin to be closed here.
+          isClosingOrigin = isAbandoned && !isOriginClosed;
+          notifyAll();
+        }
+      }
+      if(isClosingOrigin) {
+        closeOrigin();
+      }
+      if(n == -1 || isDetaching) {
+        detach();
+      }
+    }
+
+    private void closeOrigin() {
+      try {
+        in.close();
+      } catch(IOException e) {
+      }
+    }
+
+    /**
+     * Remove from a detached load the readers that are too far behind, before the content is extended. This must be called under the lock.
+     */
+    private void dropLaggingReaders() {
+      if(!isDetached) {
+        return;
+      }
+      for(Iterator<Reader> it = readerList.iterator(); it.hasNext(); ) {
+        Reader reader = it.next();
+        if(size - reader.position > MAX_READER_LAG) {
+          reader.isDropped = true;
+          it.remove();
+        }
+      }
+      releaseChunks();
+    }
+
+    /**
+     * Open a stream on the content of a URL that skips its first bytes, asking an HTTP server for the range when possible.
+     */
+    private static InputStream openStream(URL url, long position) throws IOException {
+      URLConnection connection = url.openConnection();
+      boolean isHTTP = connection instanceof HttpURLConnection;
+      if(isHTTP && position > 0) {
+        connection.setRequestProperty("Range", "bytes=" + position + "-");
+      }
+      InputStream in = connection.getInputStream();
+      long skipCount = position;
+      if(isHTTP && ((HttpURLConnection)connection).getResponseCode() == 206) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if(contentRange == null || !contentRange.startsWith("bytes " + position + "-")) {
+          in.close();
+          throw new IOException("Unexpected range " + contentRange + " for " + url);
+        }
+        skipCount = 0;
+      }
+      while(skipCount > 0) {
+        long n = in.skip(skipCount);
+        if(n <= 0) {
+          if(in.read() == -1) {
+            in.close();
+            throw new EOFException();
+          }
+          n = 1;
+        }
+        skipCount -= n;
+      }
+      return in;
+    }
+
+    /**
+     * Release the chunks that all the readers have consumed, which is possible once no more readers can join.
+     */
+    private void releaseChunks() {
+      if(!isDetached) {
+        return;
+      }
+      long position = size;
+      for(Reader reader: readerList) {
+        position = Math.min(position, reader.position);
+      }
+      for(int i=(int)(position / CHUNK_SIZE) - 1; i>=0 && chunkList.get(i) != null; i--) {
+        chunkList.set(i, null);
+      }
+    }
+
+    private class Reader extends InputStream {
+
+      private boolean isOwner;
+      private long position;
+      private boolean isClosed;
+      /**
+       * Whether the reader left the load because it was too far behind the others, to continue from its own stream.
+       */
+      private boolean isDropped;
+      private InputStream ownStream;
+
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1? -1: b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+          return 0;
+        }
+        while(true) {
+          synchronized(SharedLoad.this) {
+            while(true) {
+              if(isClosed) {
+                throw new IOException("Stream closed.");
               }
-              httpDataArray = new HTTPData[indexList.size() - 1];
-              for(int i=0; i<httpDataArray.length; i++) {
-                HTTPData httpData = new HTTPData();
-                httpDataArray[i] = httpData;
-                int start = indexList.get(i);
-                ByteArrayInputStream bais = new ByteArrayInputStream(dataBytes, start, indexList.get(i + 1) - start - in.getLineSeparator().length());
-                HTTPInputStream din = new HTTPInputStream(bais);
-                din.readAsciiLine();
-                Map<String, String> dataHeaderMap = httpData.getHeaderMap();
-                for(String header; (header = din.readAsciiLine()).length() > 0; ) {
-                  String key = header.substring(header.indexOf(": "));
-                  String value = header.substring(key.length() + ": ".length());
-                  dataHeaderMap.put(key, value);
-                }
-                ByteArrayOutputStream aos = new ByteArrayOutputStream();
-                for(int n; (n=din.read()) != -1; aos.write(n)) {
-                }
-                httpData.setBytes(aos.toByteArray());
+              if(isDropped) {
+                break;
               }
-            } else {
-              InputStreamReader reader = new InputStreamReader(in, "UTF-8");
-              String dataContent;
-              if(contentLength > 0) {
-                char[] chars = new char[contentLength];
-                int offset = 0;
-                while(chars.length > offset) {
-                  int n = reader.read(chars, offset, chars.length - offset);
-                  offset = n == -1? chars.length: offset + n;
+              if(position < size) {
+                int offset = (int)(position % CHUNK_SIZE);
+                byte[] chunk = chunkList.get((int)(position / CHUNK_SIZE));
+                int count = (int)Math.min(Math.min(len, CHUNK_SIZE - offset), size - position);
+                System.arraycopy(chunk, offset, b, off, count);
+                position += count;
+                if(offset + count == CHUNK_SIZE) {
+                  releaseChunks();
                 }
-                dataContent = new String(chars);
-              } else {
-                StringBuilder sb = new StringBuilder();
-                char[] chars = new char[1024];
-                for(int i; (i=reader.read(chars)) != -1; sb.append(chars, 0, i)) {
-                }
-                dataContent = sb.toString();
+                return count;
               }
-              HTTPData httpData = new HTTPData();
-              Map<String, String> dataHeaderMap = httpData.getHeaderMap();
-              for(String content: dataContent.split("&")) {
-                int eqIndex = content.indexOf('=');
-                if(eqIndex > 0) {
-                  String key = content.substring(0, eqIndex);
-                  String value = Utils.decodeURL(content.substring(eqIndex + 1));
-                  dataHeaderMap.put(key, value);
-                } else {
-                  dataHeaderMap.put(content, "");
-                }
+              if(isComplete) {
+                return -1;
+              }
+              if(failure != null) {
+                throw new IOException(failure.getMessage());
+              }
+              if(!isFetching) {
+                isFetching = true;
+                dropLaggingReaders();
+                break;
+              }
+              try {
+                SharedLoad.this.wait();
+              } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + key);
               }
-              httpDataArray = new HTTPData[] {httpData};
             }
-            httpRequest.setHTTPPostDataArray(httpDataArray);
           }
-          WebServerContent webServerContent = getWebServerContent(httpRequest);
-          InputStream resourceStream_ = null;
-          if(webServerContent != null) {
-            try {
-              resourceStream_ = webServerContent.getInputStream();
-            } catch(Exception e) {
-              e.printStackTrace();
-            }
+          if(isDropped) {
+            return readOwnStream(b, off, len);
+          }
+          fetch();
+        }
+      }
+
+      private int readOwnStream(byte[] b, int off, int len) throws IOException {
+        if(ownStream == null) {
+          ownStream = openStream(new URL(key), position);
+        }
+        int n = ownStream.read(b, off, len);
+        if(n > 0) {
+          position += n;
+        }
+        return n;
+      }
+
+      @Override
+      public int available() throws IOException {
+        synchronized(SharedLoad.this) {
+          if(isDropped) {
+            return ownStream == null? 0: ownStream.available();
+          }
+          return (int)Math.min(Integer.MAX_VALUE, size - position);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        boolean isAbandoned;
+        synchronized(SharedLoad.this) {
+          if(isClosed) {
+            return;
+          }
+          isClosed = true;
+          if(isDropped) {
+            // The reader is not part of the load anymore: only its own stream is closed.
+            isAbandoned = false;
+          } else {
+            readerList.remove(this);
+            isAbandoned = readerList.isEmpty() && !isComplete && failure == null;
+            SharedLoad.this.isAbandoned = isAbandoned;
+            releaseChunks();
+          }
+        }
+        if(ownStream != null) {
+          ownStream.close();
+        }
+        if(isAbandoned) {
+          // No request needs the rest of the content.
+          detach();
+          synchronized(SharedLoad.this) {
+            if(in != null && !isFetching) {
+              closeOrigin();
+            }
+            if(failure == null) {
+              failure = new IOException("Load abandoned.");
+            }
+            SharedLoad.this.notifyAll();
+          }
+        }
+      }
+
+    }
+
+  }
+
+  /**
+   * A disk cache of the remote resources that the web server proxies, which follows the caching headers of their origin. Stale resources are
+   * revalidated with their entity tag or modification date, and are served as they are when the origin cannot be reached, unless the origin requires
+   * revalidation. The cache is limited to a number of bytes and evicts the least recently used resources first.
+   */
+  private static class ProxyCache {
+
+    private static class Entry {
+
+      private String key;
+      private String url;
+      private File file;
+      private long size;
+      private String eTag;
+      private String lastModified;
+      private long expirationTime;
+      private boolean isMustRevalidate;
+
+      public boolean isFresh() {
+        return System.currentTimeMillis() < expirationTime && file.isFile();
+      }
+
+      /**
+       * Update the caching information from the headers of a response of the origin.
+       * @return false if the response must not be stored.
+       */
+      public boolean update(URLConnection connection) {
+        String eTag = connection.getHeaderField("ETag");
+        if(eTag != null) {
+          this.eTag = eTag;
+        }
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if(lastModified != null) {
+          this.lastModified = lastModified;
+        }
+        long time = System.currentTimeMillis();
+        long maxAge = -1;
+        boolean isNoCache = false;
+        isMustRevalidate = false;
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if(cacheControl != null) {
+          for(String directive: cacheControl.toLowerCase(Locale.ENGLISH).split(",")) {
+            directive = directive.trim();
+            if("no-store".equals(directive)) {
+              return false;
+            }
+            if("no-cache".equals(directive)) {
+              isNoCache = true;
+            } else if("must-revalidate".equals(directive) || "proxy-revalidate".equals(directive)) {
+              isMustRevalidate = true;
+            } else if(directive.startsWith("max-age=")) {
+              try {
+                maxAge = Long.parseLong(directive.substring("max-age=".length()).trim()) * 1000;
+              } catch(NumberFormatException e) {
+                maxAge = 0;
+              }
+            }
+          }
+        }
+        long date = connection.getDate();
+        if(date <= 0) {
+          date = time;
+        }
+        if(maxAge < 0) {
+          long expiration = connection.getExpiration();
+          if(expiration > 0) {
+            maxAge = Math.max(0, expiration - date);
+          } else {
+            // Without explicit freshness, a resource is considered fresh for a tenth of the time since it was modified, up to a day.
+            long lastModifiedTime = connection.getLastModified();
+            maxAge = lastModifiedTime > 0 && lastModifiedTime < date? Math.min((date - lastModifiedTime) / 10, 24 * 60 * 60 * 1000): 0;
+          }
+        }
+        if(isNoCache) {
+          maxAge = 0;
+        }
+        maxAge -= connection.getHeaderFieldInt("Age", 0) * 1000L;
+        expirationTime = time + Math.max(0, maxAge);
+        return true;
+      }
+
+    }
+
+    /**
+     * The name of the directory that the cache owns in the configured one, so that it never touches the files that it did not create.
+     */
+    private static final String DIRECTORY_NAME = "nswebserver-proxycache";
+    private static final Pattern ENTRY_FILE_NAME_PATTERN = Pattern.compile("[0-9a-f]{40}\\.properties");
+    private static final Pattern DATA_FILE_NAME_PATTERN = Pattern.compile("[0-9a-f]{40}-[0-9]+\\.data");
+
+    private static ProxyCache instance;
+    private static boolean isInitialized;
+
+    /**
+     * @return the proxy cache, or null if it is not enabled.
+     */
+    public static synchronized ProxyCache getInstance() {
+      if(!isInitialized) {
+        isInitialized = true;
+        String path = NSSystemProperty.WEBSERVER_PROXYCACHE.get();
+        if(path != null && path.length() > 0) {
+          long maxSize = 64 * 1024 * 1024;
+          String maxSizeProperty = NSSystemProperty.WEBSERVER_PROXYCACHESIZE.get();
+          if(maxSizeProperty != null) {
+            try {
+              maxSize = Long.parseLong(maxSizeProperty);
+            } catch(Exception e) {
+              e.printStackTrace();
+            }
+          }
+          if(maxSize > 0) {
+            instance = new ProxyCache(new File(path, DIRECTORY_NAME), maxSize);
+          }
+        }
+      }
+      return instance;
+    }
+
+    private File directory;
+    private long maxSize;
+    private long size;
+    private Map<String, Entry> entryMap = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+
+    private ProxyCache(File directory, long maxSize) {
+      this.directory = directory;
+      this.maxSize = maxSize;
+      load();
+    }
+
+    /**
+     * Read the entries that a previous run stored, in the order of their last use, and delete the files of the cache that do not belong to an entry.
+     * Only the files which names follow the naming of the entries and of their data are considered.
+     */
+    private synchronized void load() {
+      directory.mkdirs();
+      File[] files = directory.listFiles();
+      if(files == null) {
+        return;
+      }
+      List<Entry> entryList = new ArrayList<Entry>();
+      Set<File> entryFileSet = new HashSet<File>();
+      for(File file: files) {
+        String name = file.getName();
+        if(!ENTRY_FILE_NAME_PATTERN.matcher(name).matches()) {
+          continue;
+        }
+        Entry entry = null;
+        try {
+          Properties properties = new Properties();
+          InputStream in = new FileInputStream(file);
+          try {
+            properties.load(in);
+          } finally {
+            in.close();
+          }
+          entry = new Entry();
+          entry.key = name.substring(0, name.length() - ".properties".length());
+          entry.url = properties.getProperty("url");
+          String fileName = properties.getProperty("file");
+          if(!DATA_FILE_NAME_PATTERN.matcher(fileName).matches() || !fileName.startsWith(entry.key + "-")) {
+            throw new IllegalStateException("Invalid data file: " + fileName);
+          }
+          entry.file = new File(directory, fileName);
+          entry.eTag = properties.getProperty("eTag");
+          entry.lastModified = properties.getProperty("lastModified");
+          entry.expirationTime = Long.parseLong(properties.getProperty("expirationTime"));
+          entry.isMustRevalidate = Boolean.parseBoolean(properties.getProperty("mustRevalidate"));
+          entry.size = entry.file.length();
+          if(entry.url == null || !entry.file.isFile() || entry.size != Long.parseLong(properties.getProperty("size"))) {
+            entry = null;
+          }
+        } catch(Exception e) {
+          entry = null;
+        }
+        if(entry == null) {
+          file.delete();
+        } else {
+          entryList.add(entry);
+          entryFileSet.add(file);
+          entryFileSet.add(entry.file);
+        }
+      }
+      for(File file: files) {
+        if(!entryFileSet.contains(file) && DATA_FILE_NAME_PATTERN.matcher(file.getName()).matches()) {
+          file.delete();
+        }
+      }
+      // The time of last use is the modification time of the data files.
+      Collections.sort(entryList, new Comparator<Entry>() {
+        public int compare(Entry entry1, Entry entry2) {
+          long lastModified1 = entry1.file.lastModified();
+          long lastModified2 = entry2.file.lastModified();
+          return lastModified1 < lastModified2? -1: lastModified1 == lastModified2? 0: 1;
+        }
+      });
+      for(Entry entry: entryList) {
+        entryMap.put(entry.key, entry);
+        size += entry.size;
+      }
+      evict();
+    }
+
+    private static String getKey(String url) {
+      try {
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for(byte b: digest) {
+          sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+      } catch(Exception e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private synchronized Entry getEntry(String key, String url) {
+      Entry entry = entryMap.get(key);
+      return entry != null && url.equals(entry.url)? entry: null;
+    }
+
+    private InputStream openEntryStream(Entry entry) throws IOException {
+      InputStream in = new FileInputStream(entry.file);
+      entry.file.setLastModified(System.currentTimeMillis());
+      return in;
+    }
+
+    /**
+     * @return a stream on the cached content of a URL if it is fresh, or null.
+     */
+    public InputStream getFreshStream(URL url) {
+      String urlString = url.toExternalForm();
+      Entry entry = getEntry(getKey(urlString), urlString);
+      if(entry != null && entry.isFresh()) {
+        try {
+          InputStream in = openEntryStream(entry);
+          hitCount.incrementAndGet();
+          return in;
+        } catch(IOException e) {
+          // The file was evicted in the meantime.
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Open a stream on the content of a URL, from the cache if it is fresh or if the origin confirms that it is still valid, or from the origin while
+     * caching it.
+     */
+    public InputStream openStream(URL url) throws IOException {
+      InputStream in = getFreshStream(url);
+      if(in != null) {
+        return in;
+      }
+      String urlString = url.toExternalForm();
+      String key = getKey(urlString);
+      Entry entry = getEntry(key, urlString);
+      URLConnection connection;
+      int responseCode;
+      try {
+        connection = url.openConnection();
+        if(entry != null) {
+          if(entry.eTag != null) {
+            connection.setRequestProperty("If-None-Match", entry.eTag);
+          }
+          if(entry.lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", entry.lastModified);
+          }
+        }
+        responseCode = connection instanceof HttpURLConnection? ((HttpURLConnection)connection).getResponseCode(): 200;
+      } catch(IOException e) {
+        if(entry != null && !entry.isMustRevalidate) {
+          // The origin is not reachable: the stale content is better than nothing.
+          try {
+            in = openEntryStream(entry);
+            hitCount.incrementAndGet();
+            return in;
+          } catch(IOException ex) {
+          }
+        }
+        missCount.incrementAndGet();
+        throw e;
+      }
+      if(entry != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        ((HttpURLConnection)connection).disconnect();
+        Entry updatedEntry = new Entry();
+        updatedEntry.key = key;
+        updatedEntry.url = urlString;
+        updatedEntry.file = entry.file;
+        updatedEntry.size = entry.size;
+        updatedEntry.eTag = entry.eTag;
+        updatedEntry.lastModified = entry.lastModified;
+        if(updatedEntry.update(connection)) {
+          put(updatedEntry);
+        }
+        try {
+          in = openEntryStream(entry);
+          hitCount.incrementAndGet();
+          return in;
+        } catch(IOException e) {
+          // The file was evicted in the meantime: get the content again.
+          return url.openStream();
+        }
+      }
+      if(entry != null && responseCode >= 500 && !entry.isMustRevalidate) {
+        try {
+          in = openEntryStream(entry);
+          ((HttpURLConnection)connection).disconnect();
+          hitCount.incrementAndGet();
+          return in;
+        } catch(IOException e) {
+        }
+      }
+      missCount.incrementAndGet();
+      in = connection.getInputStream();
+      if(responseCode != HttpURLConnection.HTTP_OK) {
+        return in;
+      }
+      Entry newEntry = new Entry();
+      newEntry.key = key;
+      newEntry.url = urlString;
+      if(!newEntry.update(connection)) {
+        return in;
+      }
+      long contentLength = -1;
+      String contentLengthString = connection.getHeaderField("Content-Length");
+      if(contentLengthString != null) {
+        try {
+          contentLength = Long.parseLong(contentLengthString.trim());
+        } catch(NumberFormatException e) {
+        }
+      }
+      if(contentLength > maxSize / 4) {
+        return in;
+      }
+      try {
+        newEntry.file = File.createTempFile(key + "-", ".data", directory);
+      } catch(IOException e) {
+        e.printStackTrace();
+        return in;
+      }
+      return new CachingInputStream(in, newEntry, contentLength);
+    }
+
+    /**
+     * A stream that copies the content it reads to the file of an entry, and that adds the entry to the cache when the whole content was read.
+     */
+    private class CachingInputStream extends InputStream {
+
+      private InputStream in;
+      private Entry entry;
+      private long contentLength;
+      private OutputStream out;
+      private boolean isClosed;
+
+      public CachingInputStream(InputStream in, Entry entry, long contentLength) throws IOException {
+        this.in = in;
+        this.entry = entry;
+        this.contentLength = contentLength;
+        try {
+          out = new BufferedOutputStream(new FileOutputStream(entry.file));
+        } catch(IOException e) {
+          entry.file.delete();
+          throw e;
+        }
+      }
+
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1? -1: b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if(out != null) {
+          if(n == -1) {
+            commit();
+          } else {
+            try {
+              out.write(b, off, n);
+              entry.size += n;
+              if(entry.size > maxSize / 4) {
+                // The content is too big to be cached.
+                abandon();
+              }
+            } catch(IOException e) {
+              e.printStackTrace();
+              abandon();
+            }
+          }
+        }
+        return n;
+      }
+
+      @Override
+      public int available() throws IOException {
+        return in.available();
+      }
+
+      private void commit() {
+        try {
+          out.close();
+        } catch(IOException e) {
+          e.printStackTrace();
+          abandon();
+          return;
+        }
+        out = null;
+        if(contentLength >= 0 && entry.size != contentLength) {
+          entry.file.delete();
+          return;
+        }
+        put(entry);
+      }
+
+      private void abandon() {
+        try {
+          out.close();
+        } catch(IOException e) {
+        }
+        out = null;
+        entry.file.delete();
+      }
+
+      @Override
+      public void close() throws IOException {
+        if(isClosed) {
+          return;
+        }
+        isClosed = true;
+        if(out != null) {
+          // The content was not fully read.
+          abandon();
+        }
+        in.close();
+      }
+
+    }
+
+    private synchronized void put(Entry entry) {
+      if(!entry.file.isFile()) {
+        // The file was evicted while the entry was revalidated.
+        return;
+      }
+      try {
+        Properties properties = new Properties();
+        properties.setProperty("url", entry.url);
+        properties.setProperty("file", entry.file.getName());
+        properties.setProperty("size", String.valueOf(entry.size));
+        if(entry.eTag != null) {
+          properties.setProperty("eTag", entry.eTag);
+        }
+        if(entry.lastModified != null) {
+          properties.setProperty("lastModified", entry.lastModified);
+        }
+        properties.setProperty("expirationTime", String.valueOf(entry.expirationTime));
+        properties.setProperty("mustRevalidate", String.valueOf(entry.isMustRevalidate));
+        OutputStream out = new FileOutputStream(new File(directory, entry.key + ".properties"));
+        try {
+          properties.store(out, null);
+        } finally {
+          out.close();
+        }
+      } catch(IOException e) {
+        e.printStackTrace();
+        if(entryMap.get(entry.key) == null || entryMap.get(entry.key).file != entry.file) {
+          entry.file.delete();
+        }
+        return;
+      }
+      Entry oldEntry = entryMap.put(entry.key, entry);
+      if(oldEntry != null) {
+        size -= oldEntry.size;
+        if(!oldEntry.file.equals(entry.file)) {
+          deleteFile(oldEntry.file);
+        }
+      }
+      size += entry.size;
+      evict();
+    }
+
+    private void evict() {
+      for(Iterator<Entry> it = entryMap.values().iterator(); size > maxSize && it.hasNext(); ) {
+        Entry entry = it.next();
+        it.remove();
+        size -= entry.size;
+        new File(directory, entry.key + ".properties").delete();
+        deleteFile(entry.file);
+      }
+    }
+
+    private static void deleteFile(File file) {
+      // The file may still be read by a request, which prevents its deletion on some systems.
+      if(!file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+
+    public long getHitCount() {
+      return hitCount.get();
+    }
+
+    public long getMissCount() {
+      return missCount.get();
+    }
+
+  }
+
+  /**
+   * The handling of a connection, which is run by its own thread.
+   */
+  private static class WebServerConnectionThread implements Runnable {
+
+    private static int threadInitNumber;
+
+    private static synchronized int nextThreadNumber() {
+      return threadInitNumber++;
+    }
+
+    private Socket socket;
+    private Semaphore semaphore;
+    private WebServerMetrics metrics;
+
+    /**
+     * @param semaphore the permits of the web server, which limit the number of connections handled at once. The thread waits for a permit before
+     * it reads from the connection.
+     */
+    public WebServerConnectionThread(Socket socket, Semaphore semaphore, WebServerMetrics metrics) {
+      this.socket = socket;
+      this.semaphore = semaphore;
+      this.metrics = metrics;
+    }
+
+    /**
+     * Start a platform thread for the connection.
+     */
+    public void start() {
+      Thread thread = new Thread(this, "WebServer Connection-" + nextThreadNumber());
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private static final String LS = Utils.LINE_SEPARATOR;
+
+    static final int KEEP_ALIVE_TIMEOUT = 10000;
+    static final int MAX_KEEP_ALIVE_REQUESTS = 100;
+    /**
+     * The time after which an idle kept-alive connection checks whether other connections wait for a permit.
+     */
+    static final int IDLE_POLL_INTERVAL = 100;
+
+    /**
+     * The protocol state of a request and its response, which decides how the response is framed and whether the connection can serve another request.
+     */
+    static class HTTPExchange {
+      int statusCode;
+      boolean isHTTP11;
+      boolean isKeepAlive;
+      boolean isChunked;
+      String eTag;
+      String cacheControl;
+      String contentEncoding;
+      boolean isEncodingNegotiated;
+      boolean isAcceptingRanges;
+      String contentRange;
+    }
+
+    /**
+     * Content smaller than this is not worth compressing.
+     */
+    private static final int MIN_COMPRESSION_SIZE = 1024;
+
+    private static boolean isEncodingAccepted(String acceptEncoding, String encoding) {
+      for(String token: acceptEncoding.split(",")) {
+        String[] parameters = token.split(";");
+        if(!encoding.equalsIgnoreCase(parameters[0].trim())) {
+          continue;
+        }
+        for(int i=1; i<parameters.length; i++) {
+          String parameter = parameters[i].trim();
+          if(parameter.startsWith("q=")) {
+            try {
+              return Float.parseFloat(parameter.substring("q=".length())) > 0;
+            } catch(NumberFormatException e) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return the encoding to compress the content with ("gzip" or "deflate"), or null if it should be sent as is.
+     */
+    private static String getContentEncoding(HTTPRequest httpRequest, WebServerContent webServerContent, HTTPExchange exchange) {
+      if(!MimeTypes.isTextMimeType(webServerContent.getContentType())) {
+        return null;
+      }
+      long contentLength = webServerContent.getContentLength();
+      if(contentLength != -1 && contentLength < MIN_COMPRESSION_SIZE) {
+        return null;
+      }
+      exchange.isEncodingNegotiated = true;
+      String acceptEncoding = httpRequest.getHeader("Accept-Encoding");
+      if(acceptEncoding == null || httpRequest.getHeader("Range") != null) {
+        // Ranges apply to the content as is.
+        return null;
+      }
+      if(isEncodingAccepted(acceptEncoding, "gzip")) {
+        return "gzip";
+      }
+      if(isEncodingAccepted(acceptEncoding, "deflate")) {
+        return "deflate";
+      }
+      return null;
+    }
+
+    static DeflaterOutputStream getEncodingOutputStream(OutputStream out, String encoding) throws IOException {
+      if("gzip".equals(encoding)) {
+        return new GZIPOutputStream(out, 8192);
+      }
+      return new DeflaterOutputStream(out, new Deflater(), 8192);
+    }
+
+    static byte[] encode(byte[] bytes, String encoding) throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 3 + 64);
+      DeflaterOutputStream encodingOut = getEncodingOutputStream(baos, encoding);
+      encodingOut.write(bytes);
+      encodingOut.close();
+      return baos.toByteArray();
+    }
+
+    private static final ThreadLocal<SimpleDateFormat> HTTP_DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+      @Override
+      protected SimpleDateFormat initialValue() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return dateFormat;
+      }
+    };
+
+    static String formatHTTPDate(long time) {
+      return HTTP_DATE_FORMAT.get().format(new Date(time));
+    }
+
+    static long parseHTTPDate(String date) {
+      try {
+        return HTTP_DATE_FORMAT.get().parse(date.trim()).getTime();
+      } catch(ParseException e) {
+        return -1;
+      }
+    }
+
+    /**
+     * @return true if the client holds a copy of the content in the version it is about to be sent.
+     */
+    private static boolean isNotModified(HTTPRequest httpRequest, String eTag, long lastModified) {
+      String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+      if(ifNoneMatch != null) {
+        // The Last-Modified check is only used when there is no entity tag to compare.
+        for(String tag: ifNoneMatch.split(",")) {
+          tag = tag.trim();
+          if(tag.startsWith("W/")) {
+            tag = tag.substring(2);
+          }
+          if("*".equals(tag) || eTag.equals(tag)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      String ifModifiedSince = httpRequest.getHeader("If-Modified-Since");
+      if(ifModifiedSince != null && lastModified > 0) {
+        long time = parseHTTPDate(ifModifiedSince);
+        // Dates are exchanged with a precision of a second.
+        return time != -1 && lastModified / 1000 <= time / 1000;
+      }
+      return false;
+    }
+
+    private static String getReasonPhrase(int code) {
+      switch(code) {
+        case 200: return "OK";
+        case 206: return "Partial Content";
+        case 304: return "Not Modified";
+        case 404: return "Not Found";
+        case 411: return "Length Required";
+        case 413: return "Request Entity Too Large";
+        case 416: return "Requested Range Not Satisfiable";
+        case 500: return "Internal Server Error";
+      }
+      return "OK";
+    }
+
+    static void writeHTTPHeaders(BufferedOutputStream out, HTTPExchange exchange, int code, String contentType, long contentLength, long lastModified) {
+      exchange.statusCode = code;
+      StringBuilder sb = new StringBuilder();
+      sb.append((exchange.isHTTP11? "HTTP/1.1 ": "HTTP/1.0 ") + code + " " + getReasonPhrase(code) + LS);
+      sb.append("Content-Type: " + contentType + LS);
+      sb.append("Server: WebServer/1.0" + LS);
+      sb.append("Date: " + formatHTTPDate(System.currentTimeMillis()) + LS);
+      if(exchange.eTag != null) {
+        sb.append("ETag: " + exchange.eTag + LS);
+        if(lastModified > 0) {
+          sb.append("Last-Modified: " + formatHTTPDate(lastModified) + LS);
+        }
+      }
+      if(exchange.cacheControl != null) {
+        sb.append("Cache-Control: " + exchange.cacheControl + LS);
+      }
+      if(exchange.isEncodingNegotiated) {
+        sb.append("Vary: Accept-Encoding" + LS);
+      }
+      if(exchange.contentEncoding != null) {
+        sb.append("Content-Encoding: " + exchange.contentEncoding + LS);
+      }
+      if(exchange.isAcceptingRanges) {
+        sb.append("Accept-Ranges: bytes" + LS);
+      }
+      if(exchange.contentRange != null) {
+        sb.append("Content-Range: " + exchange.contentRange + LS);
+      }
+      if(code == 304) {
+        // No content follows.
+      } else if(contentLength != -1) {
+        sb.append("Content-Length: " + contentLength + LS);
+      } else if(exchange.isHTTP11 && exchange.isKeepAlive) {
+        exchange.isChunked = true;
+        sb.append("Transfer-Encoding: chunked" + LS);
+      } else {
+        // The end of the content is signaled by closing the connection.
+        exchange.isKeepAlive = false;
+      }
+      sb.append("Connection: " + (exchange.isKeepAlive? "keep-alive": "close") + LS);
+      sb.append(LS);
+      try {
+        out.write(sb.toString().getBytes("UTF-8"));
+      } catch(IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    static void writeHTTPError(BufferedOutputStream out, HTTPExchange exchange, int code, String message) {
+      writeHTTPHeaders(out, exchange, code, "text/html", message.length(), System.currentTimeMillis());
+      try {
+        out.write(message.getBytes("UTF-8"));
+        out.flush();
+      } catch(IOException e) {
+//        e.printStackTrace();
+      }
+    }
+
+    /**
+     * The output stream of a connection, which counts the bytes of the current response and the time of its first byte.
+     */
+    static class MeteredOutputStream extends BufferedOutputStream {
+      private long byteCount;
+      private long firstByteTime;
+      public MeteredOutputStream(OutputStream out) {
+        super(out);
+      }
+      @Override
+      public synchronized void write(int b) throws IOException {
+        meter(1);
+        super.write(b);
+      }
+      @Override
+      public synchronized void write(byte[] b, int off, int len) throws IOException {
+        meter(len);
+        super.write(b, off, len);
+      }
+      /**
+       * Count bytes that are sent to the connection without going through this stream, like file transfers.
+       */
+      synchronized void meter(long count) {
+        if(firstByteTime == 0) {
+          firstByteTime = System.nanoTime();
+        }
+        byteCount += count;
+      }
+      synchronized void resetMeter() {
+        byteCount = 0;
+        firstByteTime = 0;
+      }
+    }
+
+    /**
+     * Frame the content in chunks, so that its length does not need to be known in advance. Closing the stream terminates the content but leaves the underlying stream open.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+      private static final byte[] CRLF = {'\r', '\n'};
+      private OutputStream out;
+      public ChunkedOutputStream(OutputStream out) {
+        this.out = out;
+      }
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+      }
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+          return;
+        }
+        out.write(Integer.toHexString(len).getBytes("ISO-8859-1"));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+      }
+      @Override
+      public void flush() throws IOException {
+        out.flush();
+      }
+      @Override
+      public void close() throws IOException {
+        out.write('0');
+        out.write(CRLF);
+        out.write(CRLF);
+      }
+    }
+
+    /**
+     * The stream given to the output contents: closing it only flushes, and the written data can be printed for debugging.
+     */
+    private static class ContentOutputStream extends BufferedOutputStream {
+      private long printDataCount;
+      public ContentOutputStream(OutputStream out, long printDataCount) {
+        super(out, 8192);
+        this.printDataCount = printDataCount;
+      }
+      @Override
+      public synchronized void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+      }
+      @Override
+      public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if(len > 0 && printDataCount > 0) {
+          System.err.print(new String(b, off, (int)Math.min(len, printDataCount), "UTF-8"));
+          printDataCount -= len;
+        }
+        super.write(b, off, len);
+      }
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    }
+
+    /**
+     * A connection that can send a region of a file without copying it through the output stream of the response, which must be flushed first.
+     */
+    static interface FileTransfer {
+      public void transferFile(File file, long position, long count) throws IOException;
+    }
+
+    private static void transferFile(File file, long position, long count, WritableByteChannel channel) throws IOException {
+      FileInputStream fileInputStream = new FileInputStream(file);
+      try {
+        FileChannel fileChannel = fileInputStream.getChannel();
+        while(count > 0) {
+          long n = fileChannel.transferTo(position, count, channel);
+          if(n <= 0 && position >= fileChannel.size()) {
+            throw new EOFException();
+          }
+          position += n;
+          count -= n;
+        }
+      } finally {
+        fileInputStream.close();
+      }
+    }
+
+    /**
+     * A parser of multipart bodies, which streams each part to memory or, when it is large, to a temporary file. Boundaries are found with a
+     * Boyer-Moore-Horspool search in a buffer of bounded size.
+     */
+    private static class MultipartParser {
+
+      private static final int BUFFER_SIZE = 64 * 1024;
+      private static final int MAX_IN_MEMORY_PART_SIZE = 256 * 1024;
+
+      private InputStream in;
+      private byte[] delimiter;
+      private int[] shiftTable = new int[256];
+      private byte[] buffer;
+      private int start;
+      private int end;
+      private boolean isEndOfStream;
+
+      public MultipartParser(InputStream in, String lineSeparator, String boundary) throws IOException {
+        this.in = in;
+        delimiter = (lineSeparator + "--" + boundary).getBytes("ISO-8859-1");
+        int last = delimiter.length - 1;
+        Arrays.fill(shiftTable, delimiter.length);
+        for(int i=0; i<last; i++) {
+          shiftTable[delimiter[i] & 0xFF] = last - i;
+        }
+        buffer = new byte[Math.max(BUFFER_SIZE, delimiter.length * 2)];
+        // The first boundary is not preceded by a line separator: one is added so it is found like the others.
+        byte[] lineSeparatorBytes = lineSeparator.getBytes("ISO-8859-1");
+        System.arraycopy(lineSeparatorBytes, 0, buffer, 0, lineSeparatorBytes.length);
+        end = lineSeparatorBytes.length;
+      }
+
+      /**
+       * @return false if no more bytes could be read.
+       */
+      private boolean fill() throws IOException {
+        if(isEndOfStream) {
+          return false;
+        }
+        if(start > 0) {
+          System.arraycopy(buffer, start, buffer, 0, end - start);
+          end -= start;
+          start = 0;
+        }
+        int n = in.read(buffer, end, buffer.length - end);
+        if(n == -1) {
+          isEndOfStream = true;
+          return false;
+        }
+        end += n;
+        return true;
+      }
+
+      private int indexOfDelimiter() {
+        int last = delimiter.length - 1;
+        for(int i=start; i<end - last; i += shiftTable[buffer[i + last] & 0xFF]) {
+          for(int j=last; buffer[i + j] == delimiter[j]; j--) {
+            if(j == 0) {
+              return i;
+            }
+          }
+        }
+        return -1;
+      }
+
+      /**
+       * Write the bytes up to the next delimiter, and consume that delimiter.
+       * @param out the stream to write to, or null to skip the bytes.
+       * @return false if the end of the stream was reached without finding a delimiter.
+       */
+      private boolean transferToDelimiter(OutputStream out) throws IOException {
+        while(true) {
+          int index = indexOfDelimiter();
+          if(index != -1) {
+            if(out != null) {
+              out.write(buffer, start, index - start);
+            }
+            start = index + delimiter.length;
+            return true;
+          }
+          // The last bytes may be the beginning of a delimiter.
+          int transferEnd = Math.max(start, end - delimiter.length + 1);
+          if(out != null) {
+            out.write(buffer, start, transferEnd - start);
+          }
+          start = transferEnd;
+          if(!fill()) {
+            if(out != null) {
+              out.write(buffer, start, end - start);
+            }
+            start = end;
+            return false;
+          }
+        }
+      }
+
+      private int peek(int offset) throws IOException {
+        while(end - start <= offset) {
+          if(!fill()) {
+            return -1;
+          }
+        }
+        return buffer[start + offset] & 0xFF;
+      }
+
+      private String readLine() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        while(true) {
+          for(; start < end; start++) {
+            byte b = buffer[start];
+            if(b == '\n') {
+              start++;
+              return toLine(baos);
+            }
+            baos.write(b);
+          }
+          if(!fill()) {
+            return baos.size() == 0? null: toLine(baos);
+          }
+        }
+      }
+
+      private static String toLine(ByteArrayOutputStream baos) throws IOException {
+        String line = new String(baos.toByteArray(), "UTF-8");
+        return line.endsWith("\r")? line.substring(0, line.length() - 1): line;
+      }
+
+      public HTTPData[] parse() throws IOException {
+        List<HTTPData> httpDataList = new ArrayList<HTTPData>();
+        try {
+          if(transferToDelimiter(null)) {
+            while(true) {
+              // After a boundary, "--" ends the body.
+              int b = peek(0);
+              if(b == -1 || b == '-' && peek(1) == '-') {
+                break;
+              }
+              readLine();
+              HTTPData httpData = new HTTPData();
+              httpDataList.add(httpData);
+              Map<String, String> dataHeaderMap = httpData.getHeaderMap();
+              for(String header; (header = readLine()) != null && header.length() > 0; ) {
+                int index = header.indexOf(": ");
+                if(index > 0) {
+                  dataHeaderMap.put(header.substring(0, index), header.substring(index + ": ".length()));
+                }
+              }
+              PartOutputStream partOut = new PartOutputStream(httpData);
+              boolean isDelimited;
+              try {
+                isDelimited = transferToDelimiter(partOut);
+              } finally {
+                partOut.close();
+              }
+              if(!isDelimited) {
+                break;
+              }
+            }
+          }
+          // Consume the epilogue.
+          while(fill()) {
+            start = end;
+          }
+        } catch(IOException e) {
+          for(HTTPData httpData: httpDataList) {
+            httpData.dispose();
+          }
+          throw e;
+        }
+        return httpDataList.toArray(new HTTPData[0]);
+      }
+
+      private static class PartOutputStream extends OutputStream {
+
+        private HTTPData httpData;
+        private ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        private OutputStream fileOut;
+
+        public PartOutputStream(HTTPData httpData) {
+          this.httpData = httpData;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          if(fileOut == null && baos.size() + len > MAX_IN_MEMORY_PART_SIZE) {
+            File file = File.createTempFile("nswebserver", ".part");
+            httpData.setFile(file);
+            fileOut = new BufferedOutputStream(new FileOutputStream(file));
+            baos.writeTo(fileOut);
+            baos = null;
+          }
+          if(fileOut != null) {
+            fileOut.write(b, off, len);
+          } else {
+            baos.write(b, off, len);
+          }
+        }
+
+        @Override
+        public void close() throws IOException {
+          if(fileOut != null) {
+            fileOut.close();
+          } else {
+            httpData.setBytes(baos.toByteArray());
+          }
+        }
+
+      }
+
+    }
+
+    /**
+     * A stream that reads a fixed number of bytes of another stream, without closing it.
+     */
+    private static class BoundedInputStream extends InputStream {
+
+      private InputStream in;
+      private long remaining;
+
+      public BoundedInputStream(InputStream in, long length) {
+        this.in = in;
+        this.remaining = length;
+      }
+
+      @Override
+      public int read() throws IOException {
+        byte[] bytes = new byte[1];
+        return read(bytes, 0, 1) == -1? -1: bytes[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if(remaining <= 0) {
+          return -1;
+        }
+        int n = in.read(b, off, (int)Math.min(len, remaining));
+        if(n == -1) {
+          throw new EOFException();
+        }
+        remaining -= n;
+        return n;
+      }
+
+      @Override
+      public void close() throws IOException {
+      }
+
+    }
+
+    private static final int MAX_RANGE_COUNT = 16;
+
+    /**
+     * Parse the value of a Range header.
+     * @return the list of satisfiable ranges as pairs of first and last byte positions, which is empty if none can be satisfied, or null if the
+     * header is to be ignored.
+     */
+    private static List<long[]> parseRanges(String range, long length) {
+      range = range.trim();
+      if(!range.startsWith("bytes=")) {
+        return null;
+      }
+      String[] specs = range.substring("bytes=".length()).split(",");
+      if(specs.length > MAX_RANGE_COUNT) {
+        return null;
+      }
+      List<long[]> rangeList = new ArrayList<long[]>(specs.length);
+      for(String spec: specs) {
+        spec = spec.trim();
+        int index = spec.indexOf('-');
+        if(index == -1) {
+          return null;
+        }
+        long first;
+        long last;
+        try {
+          if(index == 0) {
+            // The last bytes.
+            long suffixLength = Long.parseLong(spec.substring(1));
+            if(suffixLength == 0) {
+              continue;
+            }
+            first = Math.max(0, length - suffixLength);
+            last = length - 1;
+          } else {
+            first = Long.parseLong(spec.substring(0, index));
+            if(index == spec.length() - 1) {
+              last = length - 1;
+            } else {
+              last = Long.parseLong(spec.substring(index + 1));
+              if(last < first) {
+                return null;
+              }
+              last = Math.min(last, length - 1);
+            }
+          }
+        } catch(NumberFormatException e) {
+          return null;
+        }
+        if(first < 0) {
+          return null;
+        }
+        if(first < length) {
+          rangeList.add(new long[] {first, last});
+        }
+      }
+      return rangeList;
+    }
+
+    /**
+     * @return true if the Range header applies, which is when the If-Range header is absent or designates the current version of the content.
+     */
+    private static boolean isRangeApplicable(HTTPRequest httpRequest, String eTag, long lastModified) {
+      String ifRange = httpRequest.getHeader("If-Range");
+      if(ifRange == null) {
+        return true;
+      }
+      if(eTag == null) {
+        return false;
+      }
+      ifRange = ifRange.trim();
+      if(ifRange.startsWith("\"")) {
+        return ifRange.equals(eTag);
+      }
+      if(ifRange.startsWith("W/")) {
+        return false;
+      }
+      long time = parseHTTPDate(ifRange);
+      return time != -1 && lastModified / 1000 == time / 1000;
+    }
+
+    /**
+     * Write the requested ranges of the content: a single range as is, several ranges as a multipart/byteranges content.
+     */
+    private static void writeRanges(BufferedOutputStream out, HTTPExchange exchange, WebServerContent webServerContent, List<long[]> rangeList, long length, FileTransfer fileTransfer) throws IOException {
+      if(rangeList.isEmpty()) {
+        exchange.contentRange = "bytes */" + length;
+        writeHTTPError(out, exchange, 416, "Requested Range Not Satisfiable.");
+        return;
+      }
+      String contentType = webServerContent.getContentType();
+      long lastModified = webServerContent.getLastModified();
+      File file = webServerContent.getFile();
+      if(rangeList.size() == 1) {
+        long[] range = rangeList.get(0);
+        exchange.contentRange = "bytes " + range[0] + "-" + range[1] + "/" + length;
+        writeHTTPHeaders(out, exchange, 206, contentType, range[1] - range[0] + 1, lastModified);
+        writeRange(out, webServerContent, file, fileTransfer, range[0], range[1] - range[0] + 1);
+        out.flush();
+        return;
+      }
+      String boundary = "BYTERANGES_" + Long.toHexString(System.nanoTime());
+      byte[][] partHeaders = new byte[rangeList.size()][];
+      byte[] closingBoundary = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+      long contentLength = closingBoundary.length;
+      for(int i=0; i<partHeaders.length; i++) {
+        long[] range = rangeList.get(i);
+        partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n").getBytes("ISO-8859-1");
+        contentLength += partHeaders[i].length + range[1] - range[0] + 1;
+      }
+      writeHTTPHeaders(out, exchange, 206, "multipart/byteranges; boundary=" + boundary, contentLength, lastModified);
+      for(int i=0; i<partHeaders.length; i++) {
+        long[] range = rangeList.get(i);
+        out.write(partHeaders[i]);
+        writeRange(out, webServerContent, file, fileTransfer, range[0], range[1] - range[0] + 1);
+      }
+      out.write(closingBoundary);
+      out.flush();
+    }
+
+    private static void writeRange(BufferedOutputStream out, WebServerContent webServerContent, File file, FileTransfer fileTransfer, long position, long count) throws IOException {
+      if(file != null && fileTransfer != null) {
+        out.flush();
+        fileTransfer.transferFile(file, position, count);
+        return;
+      }
+      byte[] bytes = new byte[8192];
+      if(file != null) {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+          randomAccessFile.seek(position);
+          while(count > 0) {
+            int n = randomAccessFile.read(bytes, 0, (int)Math.min(bytes.length, count));
+            if(n == -1) {
+              throw new EOFException();
+            }
+            out.write(bytes, 0, n);
+            count -= n;
+          }
+        } finally {
+          randomAccessFile.close();
+        }
+        return;
+      }
+      InputStream in = webServerContent.getInputStream();
+      if(in == null) {
+        throw new FileNotFoundException();
+      }
+      try {
+        while(position > 0) {
+          long n = in.skip(position);
+          if(n <= 0) {
+            if(in.read() == -1) {
+              throw new EOFException();
+            }
+            n = 1;
+          }
+          position -= n;
+        }
+        while(count > 0) {
+          int n = in.read(bytes, 0, (int)Math.min(bytes.length, count));
+          if(n == -1) {
+            throw new EOFException();
+          }
+          out.write(bytes, 0, n);
+          count -= n;
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+      for(int offset = 0; offset < bytes.length; ) {
+        int n = in.read(bytes, offset, bytes.length - offset);
+        if(n == -1) {
+          throw new EOFException();
+        }
+        offset += n;
+      }
+    }
+
+    /**
+     * A stream that reads the lines of the request head from its own buffer, and then gives access to the body. Lines are decoded without
+     * intermediate copies when they are ASCII, and common header names are shared instances.
+     */
+    private static class HTTPInputStream extends InputStream {
+      private static final int MAX_LINE_LENGTH = 64 * 1024;
+      private static final String[] COMMON_HEADER_NAMES = {
+        "Host",
+        "Connection",
+        "Keep-Alive",
+        "User-Agent",
+        "Accept",
+        "Accept-Charset",
+        "Accept-Encoding",
+        "Accept-Language",
+        "Referer",
+        "Origin",
+        "Cookie",
+        "Authorization",
+        "Cache-Control",
+        "Pragma",
+        "Content-Type",
+        "Content-Length",
+        "Transfer-Encoding",
+        "Range",
+        "If-Range",
+        "If-None-Match",
+        "If-Modified-Since",
+        "Upgrade-Insecure-Requests",
+      };
+      private static final byte[][] COMMON_HEADER_NAME_BYTES = new byte[COMMON_HEADER_NAMES.length][];
+      static {
+        for(int i=0; i<COMMON_HEADER_NAMES.length; i++) {
+          String name = COMMON_HEADER_NAMES[i].toLowerCase(Locale.ENGLISH);
+          byte[] bytes = new byte[name.length()];
+          for(int j=0; j<bytes.length; j++) {
+            bytes[j] = (byte)name.charAt(j);
+          }
+          COMMON_HEADER_NAME_BYTES[i] = bytes;
+        }
+      }
+      private InputStream inputStream;
+      private byte[] buffer = new byte[8192];
+      private int position;
+      private int limit;
+      private char[] chars = new char[256];
+      private String lineSeparator;
+      public HTTPInputStream(InputStream inputStream) {
+        this.inputStream = inputStream;
+      }
+      /**
+       * @return the line separator that ended the last line that was read.
+       */
+      public String getLineSeparator() {
+        return lineSeparator;
+      }
+      /**
+       * Wait until some bytes can be read, which are kept in the buffer.
+       * @return false if the end of the stream is reached.
+       */
+      public boolean awaitData() throws IOException {
+        return position < limit || fill();
+      }
+      /**
+       * Read more bytes in the buffer, keeping the unread ones.
+       * @return false if the end of the stream is reached.
+       */
+      private boolean fill() throws IOException {
+        if(position > 0) {
+          System.arraycopy(buffer, position, buffer, 0, limit - position);
+          limit -= position;
+          position = 0;
+        }
+        if(limit == buffer.length) {
+          if(buffer.length >= MAX_LINE_LENGTH) {
+            throw new IOException("Line too long.");
+          }
+          byte[] newBuffer = new byte[buffer.length * 2];
+          System.arraycopy(buffer, 0, newBuffer, 0, limit);
+          buffer = newBuffer;
+        }
+        int n = inputStream.read(buffer, limit, buffer.length - limit);
+        if(n == -1) {
+          return false;
+        }
+        limit += n;
+        return true;
+      }
+      /**
+       * @return the index of the line separator that ends the current line, or -1 if the stream ends before.
+       */
+      private int findLineEnd() throws IOException {
+        int i = position;
+        while(true) {
+          for(; i<limit; i++) {
+            byte b = buffer[i];
+            if(b == '\n') {
+              return i;
+            }
+            if(b == '\r') {
+              if(i + 1 == limit) {
+                // The next byte tells whether this is a CRLF.
+                int offset = i - position;
+                fill();
+                i = position + offset;
+              }
+              return i;
+            }
+          }
+          int offset = i - position;
+          if(!fill()) {
+            return -1;
+          }
+          i = position + offset;
+        }
+      }
+      private void skipLineSeparator(int index) {
+        if(buffer[index] == '\n') {
+          lineSeparator = "\n";
+          position = index + 1;
+        } else if(index + 1 < limit && buffer[index + 1] == '\n') {
+          lineSeparator = "\r\n";
+          position = index + 2;
+        } else {
+          lineSeparator = "\r";
+          position = index + 1;
+        }
+      }
+      private String decode(int start, int end) throws IOException {
+        int length = end - start;
+        if(chars.length < length) {
+          chars = new char[Math.max(length, chars.length * 2)];
+        }
+        for(int i=0; i<length; i++) {
+          byte b = buffer[start + i];
+          if(b < 0) {
+            return new String(buffer, start, length, "UTF-8");
+          }
+          chars[i] = (char)b;
+        }
+        return new String(chars, 0, length);
+      }
+      public String readAsciiLine() throws IOException {
+        int lineEnd = findLineEnd();
+        if(lineEnd == -1) {
+          if(position == limit) {
+            return null;
+          }
+          String line = decode(position, limit);
+          position = limit;
+          return line;
+        }
+        String line = decode(position, lineEnd);
+        skipLineSeparator(lineEnd);
+        return line;
+      }
+      /**
+       * Read the header lines up to the empty line that ends them.
+       * @return the names and values of the headers, in pairs.
+       */
+      public String[] readHeaders() throws IOException {
+        String[] headers = new String[32];
+        int count = 0;
+        while(true) {
+          int lineEnd = findLineEnd();
+          int end = lineEnd == -1? limit: lineEnd;
+          if(end == position) {
+            if(lineEnd != -1) {
+              skipLineSeparator(lineEnd);
+            }
+            break;
+          }
+          int index = position;
+          while(index < end && buffer[index] != ':') {
+            index++;
+          }
+          if(index > position && index < end) {
+            int valueStart = index + 1;
+            while(valueStart < end && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+              valueStart++;
+            }
+            if(count == headers.length) {
+              headers = Arrays.copyOf(headers, count * 2);
+            }
+            headers[count++] = getHeaderName(position, index);
+            headers[count++] = decode(valueStart, end);
+          }
+          if(lineEnd == -1) {
+            position = limit;
+            break;
+          }
+          skipLineSeparator(lineEnd);
+        }
+        return Arrays.copyOf(headers, count);
+      }
+      private String getHeaderName(int start, int end) throws IOException {
+        int length = end - start;
+        for(int i=0; i<COMMON_HEADER_NAME_BYTES.length; i++) {
+          byte[] nameBytes = COMMON_HEADER_NAME_BYTES[i];
+          if(nameBytes.length != length) {
+            continue;
+          }
+          int j = 0;
+          for(; j<length; j++) {
+            int b = buffer[start + j];
+            if(b >= 'A' && b <= 'Z') {
+              b += 'a' - 'A';
+            }
+            if(b != nameBytes[j]) {
+              break;
+            }
+          }
+          if(j == length) {
+            return COMMON_HEADER_NAMES[i];
+          }
+        }
+        return decode(start, end);
+      }
+      @Override
+      public void close() throws IOException {
+        inputStream.close();
+      }
+      @Override
+      public int available() throws IOException {
+        return limit - position + inputStream.available();
+      }
+      @Override
+      public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+      }
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if(position < limit) {
+          int n = Math.min(len, limit - position);
+          System.arraycopy(buffer, position, b, off, n);
+          position += n;
+          return n;
+        }
+        return inputStream.read(b, off, len);
+      }
+      @Override
+      public int read() throws IOException {
+        if(position < limit) {
+          return buffer[position++] & 0xFF;
+        }
+        return inputStream.read();
+      }
+    }
+
+    public void run() {
+      try {
+        metrics.acquirePermit(semaphore);
+      } catch(InterruptedException e) {
+        try {
+          socket.close();
+        } catch(IOException ex) {
+        }
+        return;
+      }
+      metrics.connectionOpened();
+      try {
+        HTTPInputStream in = new HTTPInputStream(new BufferedInputStream(socket.getInputStream()));
+        MeteredOutputStream out = new MeteredOutputStream(socket.getOutputStream());
+        FileTransfer fileTransfer = null;
+        final SocketChannel socketChannel = socket.getChannel();
+        if(socketChannel != null) {
+          fileTransfer = new FileTransfer() {
+            public void transferFile(File file, long position, long count) throws IOException {
+              WebServerConnectionThread.transferFile(file, position, count, socketChannel);
+            }
+          };
+        }
+        try {
+          // Serve the requests of the connection in order, as long as the client keeps it alive. When connections are waiting for a permit, this one is
+          // closed after its current request, or as soon as it is idle, rather than held until the keep-alive timeout.
+          for(int requestCount = 1; processRequest(in, out, requestCount < MAX_KEEP_ALIVE_REQUESTS && !semaphore.hasQueuedThreads(), fileTransfer, metrics); requestCount++) {
+            if(!awaitNextRequest(in)) {
+              break;
+            }
+          }
+        } finally {
+          out.flush();
+          out.close();
+          in.close();
+          socket.close();
+        }
+      } catch(Exception e) {
+//        e.printStackTrace();
+      } finally {
+        metrics.connectionClosed();
+        semaphore.release();
+      }
+    }
+
+    /**
+     * Wait for the next request of a kept-alive connection, polling with a short timeout so that the permit is given up when other connections wait for one.
+     * @return true if the next request can be read, false if the connection must be closed.
+     */
+    private boolean awaitNextRequest(HTTPInputStream in) throws IOException {
+      long deadline = System.currentTimeMillis() + KEEP_ALIVE_TIMEOUT;
+      socket.setSoTimeout(IDLE_POLL_INTERVAL);
+      try {
+        while(true) {
+          try {
+            return in.awaitData();
+          } catch(SocketTimeoutException e) {
+            if(semaphore.hasQueuedThreads() || System.currentTimeMillis() >= deadline) {
+              return false;
+            }
+          }
+        }
+      } finally {
+        socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+      }
+    }
+
+    /**
+     * Read a request from the input stream and write the response to the output stream. This is independent of the way connections are handled.
+     * @param isKeepAliveAllowed whether the connection may serve another request after this one.
+     * @param fileTransfer the way to send files directly to the connection, or null to copy them through the output stream.
+     * @param metrics the metrics in which the request is recorded, or null.
+     * @return true if the request was fully consumed and the connection can serve another request, false if it must be closed.
+     */
+    static boolean processRequest(HTTPInputStream in, final MeteredOutputStream out, boolean isKeepAliveAllowed, final FileTransfer fileTransfer, WebServerMetrics metrics) throws IOException {
+      String request = in.readAsciiLine();
+      // Some clients send an empty line after the body of a request.
+      while(request != null && request.length() == 0) {
+        request = in.readAsciiLine();
+      }
+      if(request == null) {
+        return false;
+      }
+      long startTime = System.nanoTime();
+      out.resetMeter();
+      HTTPExchange exchange = new HTTPExchange();
+      FileTransfer meteredFileTransfer = fileTransfer == null? null: new FileTransfer() {
+        public void transferFile(File file, long position, long count) throws IOException {
+          out.meter(count);
+          fileTransfer.transferFile(file, position, count);
+        }
+      };
+      try {
+        return processRequest(request, in, out, exchange, isKeepAliveAllowed, meteredFileTransfer);
+      } finally {
+        if(metrics != null) {
+          long endTime = System.nanoTime();
+          long firstByteTime;
+          long byteCount;
+          synchronized(out) {
+            firstByteTime = out.firstByteTime == 0? endTime: out.firstByteTime;
+            byteCount = out.byteCount;
+          }
+          metrics.record(request, exchange.statusCode, byteCount, firstByteTime - startTime, endTime - startTime);
+        }
+      }
+    }
+
+    private static boolean processRequest(String request, HTTPInputStream in, BufferedOutputStream out, HTTPExchange exchange, boolean isKeepAliveAllowed, FileTransfer fileTransfer) throws IOException {
+      if(!(request.endsWith(" HTTP/1.0") || request.endsWith(" HTTP/1.1"))) {
+        writeHTTPError(out, exchange, 500, "Invalid Method.");
+        return false;
+      }
+      exchange.isHTTP11 = request.endsWith(" HTTP/1.1");
+      boolean isPostMethod = false;
+      if(request.startsWith("POST ")) {
+        isPostMethod = true;
+      } else if(!request.startsWith("GET ")) {
+        writeHTTPError(out, exchange, 500, "Invalid Method.");
+        return false;
+      }
+      String resourcePath = request.substring((isPostMethod? "POST ": "GET ").length(), request.length() - " HTTP/1.0".length());
+      HTTPRequest httpRequest = new HTTPRequest(resourcePath, in.readHeaders());
+      httpRequest.setPostMethod(isPostMethod);
+      String connection = httpRequest.getHeader("Connection");
+      connection = connection == null? "": connection.toLowerCase(Locale.ENGLISH);
+      exchange.isKeepAlive = isKeepAliveAllowed && (exchange.isHTTP11? !connection.contains("close"): connection.contains("keep-alive"));
+      String transferEncoding = httpRequest.getHeader("Transfer-Encoding");
+      if(transferEncoding != null && !"identity".equalsIgnoreCase(transferEncoding)) {
+        // Clients send the length of their requests: encoded bodies are not supported.
+        exchange.isKeepAlive = false;
+        writeHTTPError(out, exchange, 411, "Length Required.");
+        return false;
+      }
+      String contentLengthString = httpRequest.getHeader("Content-Length");
+      long contentLength = contentLengthString == null? -1: Long.parseLong(contentLengthString.trim());
+      // Read exactly the body, as the next request of the connection may follow.
+      InputStream dataIn;
+      if(contentLength >= 0) {
+        dataIn = new BoundedInputStream(in, contentLength);
+      } else if(exchange.isHTTP11 || !isPostMethod) {
+        dataIn = new BoundedInputStream(in, 0);
+      } else {
+        // The end of the body is signaled by the client closing its output.
+        exchange.isKeepAlive = false;
+        dataIn = in;
+      }
+      if(isPostMethod) {
+        HTTPData[] httpDataArray;
+        String contentType = httpRequest.getHeader("Content-Type");
+        if(contentType != null && contentType.startsWith("multipart/")) {
+          String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+          int index = boundary.indexOf(';');
+          if(index != -1) {
+            boundary = boundary.substring(0, index);
+          }
+          boundary = boundary.trim();
+          if(boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+          }
+          httpDataArray = new MultipartParser(dataIn, in.getLineSeparator(), boundary).parse();
+        } else {
+          ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          byte[] bytes = new byte[1024];
+          for(int i; (i=dataIn.read(bytes)) != -1; baos.write(bytes, 0, i)) {
+          }
+          byte[] dataBytes = baos.toByteArray();
+          String dataContent = new String(dataBytes, "UTF-8");
+          HTTPData httpData = new HTTPData();
+          Map<String, String> dataHeaderMap = httpData.getHeaderMap();
+          for(String content: dataContent.split("&")) {
+            int eqIndex = content.indexOf('=');
+            if(eqIndex > 0) {
+              String key = content.substring(0, eqIndex);
+              String value = Utils.decodeURL(content.substring(eqIndex + 1));
+              dataHeaderMap.put(key, value);
+            } else {
+              dataHeaderMap.put(content, "");
+            }
+          }
+          httpDataArray = new HTTPData[] {httpData};
+        }
+        httpRequest.setHTTPPostDataArray(httpDataArray);
+      }
+      boolean isKeepAlive;
+      try {
+        isKeepAlive = writeResponse(out, exchange, httpRequest, fileTransfer);
+      } finally {
+        HTTPData[] httpDataArray = httpRequest.getHTTPPostDataArray();
+        if(httpDataArray != null) {
+          for(HTTPData httpData: httpDataArray) {
+            httpData.dispose();
+          }
+        }
+      }
+      if(isKeepAlive) {
+        // The next request follows the part of the body that was not read, like the body of a GET or the epilogue of a multipart body.
+        byte[] bytes = new byte[4096];
+        while(dataIn.read(bytes) != -1) {
+        }
+      }
+      return isKeepAlive;
+    }
+
+    private static boolean writeResponse(BufferedOutputStream out, HTTPExchange exchange, HTTPRequest httpRequest, FileTransfer fileTransfer) throws IOException {
+      boolean isPostMethod = httpRequest.isPostMethod();
+      String resourcePath = httpRequest.getURLPath();
+      WebServerContent webServerContent = getWebServerContent(httpRequest);
+      boolean isPrintRequestsDebug = Boolean.parseBoolean(NSSystemProperty.WEBSERVER_DEBUG_PRINTREQUESTS.get());
+      if(webServerContent != null) {
+        exchange.contentEncoding = getContentEncoding(httpRequest, webServerContent, exchange);
+      }
+      if(webServerContent != null && !isPostMethod) {
+        exchange.eTag = webServerContent.getETag();
+        if(exchange.eTag != null && exchange.contentEncoding != null) {
+          // Each encoding is a distinct representation.
+          exchange.eTag = exchange.eTag.substring(0, exchange.eTag.length() - 1) + "-" + exchange.contentEncoding + "\"";
+        }
+        if(exchange.eTag != null) {
+          exchange.cacheControl = webServerContent.getCacheControl();
+          long lastModified = webServerContent.getLastModified();
+          if(isNotModified(httpRequest, exchange.eTag, lastModified)) {
+            if(isPrintRequestsDebug) {
+              System.err.println("Web Server GET: " + resourcePath + " -> 304 (not modified)");
+            }
+            writeHTTPHeaders(out, exchange, 304, webServerContent.getContentType(), -1, lastModified);
+            out.flush();
+            return exchange.isKeepAlive;
+          }
+        }
+        if(exchange.contentEncoding == null) {
+          long length = webServerContent.getContentLength();
+          if(length >= 0) {
+            exchange.isAcceptingRanges = true;
+            String range = httpRequest.getHeader("Range");
+            if(range != null && isRangeApplicable(httpRequest, exchange.eTag, webServerContent.getLastModified())) {
+              List<long[]> rangeList = parseRanges(range, length);
+              if(rangeList != null) {
+                if(isPrintRequestsDebug) {
+                  System.err.println("Web Server GET: " + resourcePath + " -> " + (rangeList.isEmpty()? "416 (range not satisfiable)": "206 (partial content)"));
+                }
+                writeRanges(out, exchange, webServerContent, rangeList, length, fileTransfer);
+                return exchange.isKeepAlive;
+              }
+            }
+          }
+        }
+      }
+      String printDataProperty = NSSystemProperty.WEBSERVER_DEBUG_PRINTDATA.get();
+      boolean isPrintDataDebug = false;
+      long printDataCount = -1;
+      if(printDataProperty != null) {
+        try {
+          printDataCount = Long.parseLong(printDataProperty);
+          isPrintDataDebug = true;
+        } catch(Exception e) {
+          isPrintDataDebug = Boolean.parseBoolean(printDataProperty);
+          printDataCount = Integer.MAX_VALUE;
+        }
+      }
+      File file = null;
+      if(webServerContent != null && exchange.contentEncoding == null && fileTransfer != null && !isPrintDataDebug) {
+        file = webServerContent.getFile();
+      }
+      if(file != null) {
+        if(isPrintRequestsDebug) {
+          System.err.println("Web Server " + (isPostMethod? "POST": "GET") + ": " + resourcePath + " -> 200 (OK)");
+        }
+        long fileLength = file.length();
+        writeHTTPHeaders(out, exchange, 200, webServerContent.getContentType(), fileLength, webServerContent.getLastModified());
+        out.flush();
+        fileTransfer.transferFile(file, 0, fileLength);
+        return exchange.isKeepAlive;
+      }
+      InputStream resourceStream_ = null;
+      long contentLength = -1;
+      boolean isEncodingOnTheFly = false;
+      if(webServerContent instanceof WebServerOutputContent) {
+        isEncodingOnTheFly = exchange.contentEncoding != null;
+        contentLength = isEncodingOnTheFly? -1: webServerContent.getContentLength();
+      } else if(webServerContent != null) {
+        try {
+          byte[] encodedBytes = null;
+          if(exchange.contentEncoding != null && webServerContent instanceof URLResourceContent) {
+            encodedBytes = ((URLResourceContent)webServerContent).getEncodedBytes(exchange.contentEncoding);
+          }
+          if(exchange.contentEncoding != null && webServerContent instanceof ArchiveResourceContent) {
+            resourceStream_ = ((ArchiveResourceContent)webServerContent).getEncodedInputStream(exchange.contentEncoding);
+            if(resourceStream_ != null) {
+              contentLength = ((ArchiveResourceContent)webServerContent).getEncodedContentLength(exchange.contentEncoding);
+            }
+          }
+          if(encodedBytes != null) {
+            resourceStream_ = new ByteArrayInputStream(encodedBytes);
+            contentLength = encodedBytes.length;
+          } else if(resourceStream_ == null) {
+            resourceStream_ = webServerContent.getInputStream();
+            isEncodingOnTheFly = exchange.contentEncoding != null;
+            contentLength = isEncodingOnTheFly? -1: webServerContent.getContentLength();
+          }
+        } catch(Exception e) {
+          e.printStackTrace();
+        }
+      }
+      if(resourceStream_ == null && !(webServerContent instanceof WebServerOutputContent)) {
+        exchange.eTag = null;
+        exchange.cacheControl = null;
+        exchange.contentEncoding = null;
+        exchange.isEncodingNegotiated = false;
+        exchange.isAcceptingRanges = false;
+        if(isPrintRequestsDebug) {
+          System.err.println("Web Server " + (isPostMethod? "POST": "GET") + ": " + resourcePath + " -> 404 (not found)");
+        }
+        writeHTTPError(out, exchange, 404, "File Not Found.");
+        return exchange.isKeepAlive;
+      }
+      if(isPrintRequestsDebug || isPrintDataDebug) {
+        System.err.println("Web Server " + (isPostMethod? "POST": "GET") + ": " + resourcePath + " -> 200 (OK)");
+      }
+      writeHTTPHeaders(out, exchange, 200, webServerContent.getContentType(), contentLength, webServerContent.getLastModified());
+      OutputStream contentOut = exchange.isChunked? new ChunkedOutputStream(out): out;
+      DeflaterOutputStream encodingOut = isEncodingOnTheFly? getEncodingOutputStream(contentOut, exchange.contentEncoding): null;
+      OutputStream bodyOut = encodingOut != null? encodingOut: contentOut;
+      if(webServerContent instanceof WebServerOutputContent) {
+        // Small writes are grouped, so that each one does not become a chunk.
+        ContentOutputStream contentOutputStream = new ContentOutputStream(bodyOut, isPrintDataDebug? printDataCount: 0);
+        ((WebServerOutputContent)webServerContent).writeContent(contentOutputStream);
+        contentOutputStream.flush();
+        if(isPrintDataDebug) {
+          System.err.println();
+        }
+        if(encodingOut != null) {
+          encodingOut.finish();
+        }
+        if(exchange.isChunked) {
+          contentOut.close();
+        }
+        out.flush();
+        return exchange.isKeepAlive;
+      }
+      BufferedInputStream resourceStream = new BufferedInputStream(resourceStream_);
+      try {
+        byte[] bytes = new byte[4096];
+        for(int i; (i=resourceStream.read(bytes)) != -1; bodyOut.write(bytes, 0, i)) {
+          if(isPrintDataDebug && i > 0 && printDataCount > 0) {
+            System.err.print(new String(bytes, 0, (int)Math.min(i, printDataCount), "UTF-8"));
+            printDataCount -= i;
+          }
+        }
+        if(isPrintDataDebug) {
+          System.err.println();
+        }
+        if(encodingOut != null) {
+          encodingOut.finish();
+        }
+        if(exchange.isChunked) {
+          contentOut.close();
+        }
+        out.flush();
+      } finally {
+        // When the client goes away, closing the stream lets a shared load of the resource be abandoned.
+        try {
+          resourceStream.close();
+        } catch(Exception e) {
+          e.printStackTrace();
+        }
+      }
+      return exchange.isKeepAlive;
+    }
+
+  }
+
+  /**
+   * A connection engine based on a selector thread and a small pool of workers: the head of a request is accumulated without blocking until it is
+   * complete, then the request is processed by a worker which receives the body through the selector thread, and the response is written by the
+   * selector thread when the socket is writable.<br>
+   * A worker that streams a response faster than the client reads it waits for the selector thread to drain the output. Each waiting worker is
+   * compensated by an extra thread in the pool, so that slow clients do not stall the other connections, up to
+   * <code>MAX_OUTPUT_WAITING_WORKER_COUNT</code> workers: past that count, the waiting workers reduce the number of requests that can be processed.
+   */
+  private static class WebServerNIOEngine {
+
+    private static final int MAX_REQUEST_HEAD_SIZE = 64 * 1024;
+    /**
+     * The size of the buffer in which the body of a request is received while the worker reads it.
+     */
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PENDING_OUTPUT_SIZE = 256 * 1024;
+    /**
+     * The number of workers waiting for their output to be drained that are compensated by extra threads in the pool.
+     */
+    private static final int MAX_OUTPUT_WAITING_WORKER_COUNT = 64;
+
+    private static int threadInitNumber;
+
+    private static synchronized int nextThreadNumber() {
+      return threadInitNumber++;
+    }
+
+    private class NIOConnection {
+
+      private SocketChannel channel;
+      private SelectionKey key;
+      private ByteBuffer inputBuffer = ByteBuffer.allocate(4096);
+      private boolean isProcessing;
+      private int requestCount;
+      private long lastActivityTime = System.currentTimeMillis();
+      // The following fields are shared with the worker, and guarded by the connection.
+      private List<Object> outputBufferList = new LinkedList<Object>();
+      private long pendingOutputSize;
+      private boolean isResponseComplete;
+      private boolean isKeepAlive;
+      private boolean isClosed;
+      private ByteBuffer bodyBuffer;
+      private long unreceivedBodyLength;
+
+      public NIOConnection(SocketChannel channel) {
+        this.channel = channel;
+      }
+
+      /**
+       * Called by the worker: blocks until some bytes of the body of the request are received.
+       * @return the number of bytes read, or -1 at the end of the body.
+       */
+      public int readBody(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+          return 0;
+        }
+        int count;
+        synchronized(this) {
+          while(bodyBuffer.position() == 0) {
+            if(unreceivedBodyLength == 0) {
+              return -1;
+            }
+            if(isClosed) {
+              throw new IOException("The connection is closed.");
+            }
+            try {
+              wait();
+            } catch(InterruptedException e) {
+              throw new IOException("Interrupted while reading the request.");
+            }
+          }
+          bodyBuffer.flip();
+          count = Math.min(len, bodyBuffer.remaining());
+          bodyBuffer.get(b, off, count);
+          bodyBuffer.compact();
+        }
+        // The buffer has room again, so the selector may resume receiving the body.
+        notifySelector(this);
+        return count;
+      }
+
+      /**
+       * @return whether the body of the request needs bytes from the socket and has room for them.
+       */
+      private synchronized boolean isReceivingBody() {
+        return unreceivedBodyLength > 0 && bodyBuffer.hasRemaining();
+      }
+
+      /**
+       * @return whether the worker waits for bytes of the body that the client does not send.
+       */
+      private synchronized boolean isWaitingForBody() {
+        return unreceivedBodyLength > 0 && bodyBuffer.position() == 0;
+      }
+
+      /**
+       * Called by the worker: blocks while too much output is pending.
+       */
+      public void enqueueOutput(ByteBuffer buffer) throws IOException {
+        enqueueOutput(buffer, buffer.remaining());
+      }
+
+      /**
+       * Called by the worker: the region is sent by the selector thread with a file transfer, which closes the file channel when done.
+       */
+      public void enqueueOutput(FileRegion fileRegion) throws IOException {
+        try {
+          enqueueOutput(fileRegion, fileRegion.count);
+        } catch(IOException e) {
+          fileRegion.fileChannel.close();
+          throw e;
+        }
+      }
+
+      private void enqueueOutput(Object output, long size) throws IOException {
+        synchronized(this) {
+          boolean isCompensated = false;
+          try {
+            if(pendingOutputSize > MAX_PENDING_OUTPUT_SIZE && !isClosed) {
+              isCompensated = beginOutputWait();
+            }
+            while(pendingOutputSize > MAX_PENDING_OUTPUT_SIZE && !isClosed) {
+              try {
+                wait();
+              } catch(InterruptedException e) {
+                throw new IOException("Interrupted while writing the response.");
+              }
+            }
+          } finally {
+            if(isCompensated) {
+              endOutputWait();
+            }
+          }
+          if(isClosed) {
+            throw new IOException("The connection is closed.");
+          }
+          outputBufferList.add(output);
+          pendingOutputSize += size;
+        }
+        notifySelector(this);
+      }
+
+      /**
+       * Called by the worker when the response is fully enqueued.
+       */
+      public void completeResponse(boolean isKeepAlive) {
+        synchronized(this) {
+          isResponseComplete = true;
+          this.isKeepAlive = isKeepAlive;
+        }
+        notifySelector(this);
+      }
+
+      public void close() {
+        if(key != null) {
+          key.cancel();
+        }
+        try {
+          channel.close();
+        } catch(IOException e) {
+        }
+        synchronized(this) {
+          if(!isClosed) {
+            webServer.metrics.connectionClosed();
+          }
+          isClosed = true;
+          for(Object output: outputBufferList) {
+            if(output instanceof FileRegion) {
+              try {
+                ((FileRegion)output).fileChannel.close();
+              } catch(IOException e) {
+              }
+            }
+          }
+          outputBufferList.clear();
+          notifyAll();
+        }
+      }
+
+    }
+
+    private static class FileRegion {
+
+      private FileChannel fileChannel;
+      private long position;
+      private long count;
+
+      public FileRegion(FileChannel fileChannel, long position, long count) {
+        this.fileChannel = fileChannel;
+        this.position = position;
+        this.count = count;
+      }
+
+    }
+
+    private static class BodyInputStream extends InputStream {
+
+      private NIOConnection connection;
+
+      public BodyInputStream(NIOConnection connection) {
+        this.connection = connection;
+      }
+
+      @Override
+      public int read() throws IOException {
+        byte[] bytes = new byte[1];
+        return read(bytes, 0, 1) == -1? -1: bytes[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return connection.readBody(b, off, len);
+      }
+
+    }
+
+    private static class ChannelOutputStream extends OutputStream {
+
+      private NIOConnection connection;
+
+      public ChannelOutputStream(NIOConnection connection) {
+        this.connection = connection;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        if(len > 0) {
+          byte[] bytes = new byte[len];
+          System.arraycopy(b, off, bytes, 0, len);
+          connection.enqueueOutput(ByteBuffer.wrap(bytes));
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        // The worker signals the end of the response, along with whether the connection is kept alive.
+      }
+
+    }
+
+    private WebServer webServer;
+    private ServerSocketChannel serverSocketChannel;
+    private Selector selector;
+    private ThreadPoolExecutor workerPool;
+    private int workerCount;
+    private int outputWaitingWorkerCount;
+    private Queue<NIOConnection> updatedConnectionQueue = new ConcurrentLinkedQueue<NIOConnection>();
+
+    public WebServerNIOEngine(WebServer webServer, ServerSocketChannel serverSocketChannel) throws IOException {
+      this.webServer = webServer;
+      this.serverSocketChannel = serverSocketChannel;
+      selector = Selector.open();
+      serverSocketChannel.configureBlocking(false);
+      serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+      workerCount = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+      workerPool = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "WebServer Worker-" + nextThreadNumber());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+
+    public void start(boolean isDaemon) {
+      Thread selectorThread = new Thread("WebServer") {
+        @Override
+        public void run() {
+          try {
+            runSelectorLoop();
+          } finally {
+            for(SelectionKey key: selector.keys()) {
+              if(key.attachment() instanceof NIOConnection) {
+                ((NIOConnection)key.attachment()).close();
+              }
+            }
+            try {
+              selector.close();
+            } catch(IOException e) {
+            }
+            workerPool.shutdownNow();
+            webServer.serverSocket = null;
+            ObjectRegistry.getInstance().remove(webServer.instanceID);
+          }
+        }
+      };
+      selectorThread.setDaemon(isDaemon);
+      selectorThread.start();
+    }
+
+    public void stop() {
+      selector.wakeup();
+    }
+
+    /**
+     * Called by a worker before it waits for its output to be drained: the pool grows by one thread while the worker waits.
+     * @return whether the worker is compensated, in which case <code>endOutputWait()</code> must be called when it stops waiting.
+     */
+    private boolean beginOutputWait() {
+      synchronized(workerPool) {
+        if(outputWaitingWorkerCount >= MAX_OUTPUT_WAITING_WORKER_COUNT) {
+          return false;
+        }
+        outputWaitingWorkerCount++;
+        // The maximum size must grow first, as the core size cannot exceed it.
+        workerPool.setMaximumPoolSize(workerCount + outputWaitingWorkerCount);
+        workerPool.setCorePoolSize(workerCount + outputWaitingWorkerCount);
+        return true;
+      }
+    }
+
+    private void endOutputWait() {
+      synchronized(workerPool) {
+        outputWaitingWorkerCount--;
+        // The extra thread ends once it is idle.
+        workerPool.setCorePoolSize(workerCount + outputWaitingWorkerCount);
+        workerPool.setMaximumPoolSize(workerCount + outputWaitingWorkerCount);
+      }
+    }
+
+    private void notifySelector(NIOConnection connection) {
+      updatedConnectionQueue.add(connection);
+      selector.wakeup();
+    }
+
+    private void runSelectorLoop() {
+      while(webServer.isRunning && serverSocketChannel.isOpen()) {
+        try {
+          selector.select(1000);
+        } catch(IOException e) {
+          e.printStackTrace();
+          return;
+        }
+        for(NIOConnection connection; (connection = updatedConnectionQueue.poll()) != null; ) {
+          updateInterest(connection);
+        }
+        for(Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+          SelectionKey key = it.next();
+          it.remove();
+          if(!key.isValid()) {
+            continue;
+          }
+          if(key.isAcceptable()) {
+            accept();
+            continue;
           }
-          boolean isPrintRequestsDebug = Boolean.parseBoolean(NSSystemProperty.WEBSERVER_DEBUG_PRINTREQUESTS.get());
-          String printDataProperty = NSSystemProperty.WEBSERVER_DEBUG_PRINTDATA.get();
-          boolean isPrintDataDebug = false;
-          long printDataCount = -1;
-          if(printDataProperty != null) {
-            try {
-              printDataCount = Long.parseLong(printDataProperty);
-              isPrintDataDebug = true;
-            } catch(Exception e) {
-              isPrintDataDebug = Boolean.parseBoolean(printDataProperty);
-              printDataCount = Integer.MAX_VALUE;
+          NIOConnection connection = (NIOConnection)key.attachment();
+          try {
+            if(key.isReadable()) {
+              read(connection);
             }
-          }
-          if(resourceStream_ == null) {
-            if(isPrintRequestsDebug) {
-              System.err.println("Web Server " + (isPostMethod? "POST": "GET") + ": " + resourcePath + " -> 404 (not found)");
+            if(key.isValid() && key.isWritable()) {
+              write(connection);
             }
-            writeHTTPError(out, 404, "File Not Found.");
-            return;
+          } catch(IOException e) {
+            connection.close();
+          }
+        }
+        closeIdleConnections();
+      }
+    }
+
+    private void accept() {
+      try {
+        SocketChannel channel = serverSocketChannel.accept();
+        if(channel == null) {
+          return;
+        }
+        channel.configureBlocking(false);
+        // The headers of a file response are written before the file is transferred: with Nagle's algorithm, the end of the file would wait for the
+        // delayed acknowledgment of the headers.
+        channel.socket().setTcpNoDelay(true);
+        NIOConnection connection = new NIOConnection(channel);
+        webServer.metrics.connectionOpened();
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+      } catch(IOException e) {
+        if(webServer.isRunning) {
+          e.printStackTrace();
+        }
+      }
+    }
+
+    private void read(NIOConnection connection) throws IOException {
+      if(connection.isProcessing) {
+        receiveBody(connection);
+        return;
+      }
+      ByteBuffer inputBuffer = connection.inputBuffer;
+      if(!inputBuffer.hasRemaining()) {
+        // The buffer only holds the head of a request, as the body is streamed to the worker.
+        int capacity = Math.min(inputBuffer.capacity() * 2, MAX_REQUEST_HEAD_SIZE);
+        if(capacity == inputBuffer.capacity()) {
+          throw new IOException("Request too large.");
+        }
+        ByteBuffer newInputBuffer = ByteBuffer.allocate(capacity);
+        inputBuffer.flip();
+        newInputBuffer.put(inputBuffer);
+        inputBuffer = newInputBuffer;
+        connection.inputBuffer = inputBuffer;
+      }
+      int count = connection.channel.read(inputBuffer);
+      if(count == -1) {
+        connection.close();
+        return;
+      }
+      connection.lastActivityTime = System.currentTimeMillis();
+      processInput(connection);
+    }
+
+    /**
+     * Receive the body of the request that is being processed in the buffer that the worker reads, never past the end of the body.
+     */
+    private void receiveBody(NIOConnection connection) throws IOException {
+      synchronized(connection) {
+        if(connection.isReceivingBody()) {
+          ByteBuffer bodyBuffer = connection.bodyBuffer;
+          bodyBuffer.limit(bodyBuffer.position() + (int)Math.min(bodyBuffer.remaining(), connection.unreceivedBodyLength));
+          int count = connection.channel.read(bodyBuffer);
+          bodyBuffer.limit(bodyBuffer.capacity());
+          if(count == -1) {
+            throw new EOFException();
+          }
+          connection.unreceivedBodyLength -= count;
+          connection.notifyAll();
+        }
+      }
+      connection.lastActivityTime = System.currentTimeMillis();
+      updateInterest(connection);
+    }
+
+    /**
+     * Dispatch the next complete request of the connection to a worker, if the connection is not already processing a request.
+     */
+    private void processInput(final NIOConnection connection) {
+      if(connection.isProcessing) {
+        return;
+      }
+      ByteBuffer inputBuffer = connection.inputBuffer;
+      byte[] bytes = inputBuffer.array();
+      int length = inputBuffer.position();
+      int headLength = getRequestHeadLength(bytes, length);
+      if(headLength < 0) {
+        connection.close();
+        return;
+      }
+      if(headLength == 0) {
+        return;
+      }
+      long contentLength = getContentLength(bytes, headLength);
+      if(contentLength < 0) {
+        connection.close();
+        return;
+      }
+      // The part of the body that was received with the head is given along with it, and the rest is streamed to the worker, so that large bodies
+      // go through the same bounded parsing as with the other engines.
+      int receivedBodyLength = (int)Math.min(contentLength, length - headLength);
+      byte[] requestBytes = new byte[headLength + receivedBodyLength];
+      inputBuffer.flip();
+      inputBuffer.get(requestBytes);
+      inputBuffer.compact();
+      InputStream requestIn = new ByteArrayInputStream(requestBytes);
+      long unreceivedBodyLength = contentLength - receivedBodyLength;
+      if(unreceivedBodyLength > 0) {
+        synchronized(connection) {
+          if(connection.bodyBuffer == null) {
+            connection.bodyBuffer = ByteBuffer.allocate(BODY_BUFFER_SIZE);
           }
-          if(isPrintRequestsDebug || isPrintDataDebug) {
-            System.err.println("Web Server " + (isPostMethod? "POST": "GET") + ": " + resourcePath + " -> 200 (OK)");
+          connection.unreceivedBodyLength = unreceivedBodyLength;
+        }
+        requestIn = new SequenceInputStream(requestIn, new BodyInputStream(connection));
+      }
+      final WebServerConnectionThread.HTTPInputStream in = new WebServerConnectionThread.HTTPInputStream(requestIn);
+      connection.isProcessing = true;
+      // Pipelined requests are left in the socket until this one is answered, so responses are sent in order.
+      connection.key.interestOps(unreceivedBodyLength > 0? SelectionKey.OP_READ: 0);
+      final boolean isKeepAliveAllowed = ++connection.requestCount < WebServerConnectionThread.MAX_KEEP_ALIVE_REQUESTS;
+      workerPool.execute(new Runnable() {
+        public void run() {
+          WebServerConnectionThread.MeteredOutputStream out = new WebServerConnectionThread.MeteredOutputStream(new ChannelOutputStream(connection));
+          boolean isKeepAlive = false;
+          try {
+            WebServerConnectionThread.FileTransfer fileTransfer = new WebServerConnectionThread.FileTransfer() {
+              public void transferFile(File file, long position, long count) throws IOException {
+                connection.enqueueOutput(new FileRegion(new RandomAccessFile(file, "r").getChannel(), position, count));
+              }
+            };
+            isKeepAlive = WebServerConnectionThread.processRequest(in, out, isKeepAliveAllowed, fileTransfer, webServer.metrics);
+            out.flush();
+          } catch(Exception e) {
+            isKeepAlive = false;
+//            e.printStackTrace();
+          } finally {
+            connection.completeResponse(isKeepAlive);
           }
-          BufferedInputStream resourceStream = new BufferedInputStream(resourceStream_);
-          writeHTTPHeaders(out, 200, webServerContent.getContentType(), webServerContent.getContentLength(), webServerContent.getLastModified());
-          byte[] bytes = new byte[4096];
-          for(int i; (i=resourceStream.read(bytes)) != -1; out.write(bytes, 0, i)) {
-            if(isPrintDataDebug && i > 0 && printDataCount > 0) {
-              System.err.print(new String(bytes, 0, (int)Math.min(i, printDataCount), "UTF-8"));
-              printDataCount -= i;
+        }
+      });
+    }
+
+    private void write(NIOConnection connection) throws IOException {
+      synchronized(connection) {
+        while(!connection.outputBufferList.isEmpty()) {
+          Object output = connection.outputBufferList.get(0);
+          if(output instanceof FileRegion) {
+            FileRegion fileRegion = (FileRegion)output;
+            long count = fileRegion.fileChannel.transferTo(fileRegion.position, fileRegion.count, connection.channel);
+            if(count <= 0 && fileRegion.position >= fileRegion.fileChannel.size()) {
+              throw new EOFException();
+            }
+            fileRegion.position += count;
+            fileRegion.count -= count;
+            connection.pendingOutputSize -= count;
+            if(fileRegion.count > 0) {
+              break;
             }
+            fileRegion.fileChannel.close();
+          } else {
+            ByteBuffer buffer = (ByteBuffer)output;
+            int count = connection.channel.write(buffer);
+            connection.pendingOutputSize -= count;
+            if(buffer.hasRemaining()) {
+              break;
+            }
+          }
+          connection.outputBufferList.remove(0);
+        }
+        connection.notifyAll();
+      }
+      connection.lastActivityTime = System.currentTimeMillis();
+      updateInterest(connection);
+    }
+
+    private void updateInterest(NIOConnection connection) {
+      if(!connection.key.isValid()) {
+        return;
+      }
+      boolean hasPendingOutput;
+      boolean isResponseComplete;
+      boolean isKeepAlive;
+      boolean isReceivingBody;
+      synchronized(connection) {
+        isReceivingBody = connection.isReceivingBody();
+        hasPendingOutput = !connection.outputBufferList.isEmpty();
+        isResponseComplete = connection.isResponseComplete;
+        isKeepAlive = connection.isKeepAlive;
+        if(!hasPendingOutput && isResponseComplete) {
+          connection.isResponseComplete = false;
+        }
+      }
+      int bodyInterestOps = isReceivingBody? SelectionKey.OP_READ: 0;
+      if(hasPendingOutput) {
+        connection.key.interestOps(SelectionKey.OP_WRITE | bodyInterestOps);
+      } else if(isResponseComplete) {
+        if(!isKeepAlive) {
+          connection.close();
+          return;
+        }
+        connection.isProcessing = false;
+        connection.lastActivityTime = System.currentTimeMillis();
+        connection.key.interestOps(SelectionKey.OP_READ);
+        // A pipelined request may already be in the buffer.
+        processInput(connection);
+      } else if(!connection.isProcessing) {
+        // A notification of the worker may arrive after its response was completed.
+        connection.key.interestOps(SelectionKey.OP_READ);
+      } else {
+        connection.key.interestOps(bodyInterestOps);
+      }
+    }
+
+    private void closeIdleConnections() {
+      long time = System.currentTimeMillis();
+      for(SelectionKey key: selector.keys()) {
+        Object attachment = key.attachment();
+        if(attachment instanceof NIOConnection) {
+          NIOConnection connection = (NIOConnection)attachment;
+          boolean isIdle = !connection.isProcessing || connection.isWaitingForBody();
+          if(isIdle && time - connection.lastActivityTime > WebServerConnectionThread.KEEP_ALIVE_TIMEOUT) {
+            connection.close();
+          }
+        }
+      }
+    }
+
+    /**
+     * Find whether the bytes contain the complete head of a request: the request line and headers.
+     * @return the length of the head, 0 if it is incomplete, or -1 if it is too large.
+     */
+    static int getRequestHeadLength(byte[] bytes, int length) {
+      int headEnd = -1;
+      for(int i=0; i<length; i++) {
+        if(bytes[i] == '\n') {
+          if(i + 1 < length && bytes[i + 1] == '\n') {
+            headEnd = i + 2;
+            break;
+          }
+          if(i + 2 < length && bytes[i + 1] == '\r' && bytes[i + 2] == '\n') {
+            headEnd = i + 3;
+            break;
+          }
+        }
+      }
+      if(headEnd == -1) {
+        return length >= MAX_REQUEST_HEAD_SIZE? -1: 0;
+      }
+      return headEnd;
+    }
+
+    /**
+     * @return the length of the body of a request given its head, which is 0 when no content length is specified, or -1 if it is invalid.
+     */
+    static long getContentLength(byte[] bytes, int headLength) {
+      long contentLength = 0;
+      String head;
+      try {
+        head = new String(bytes, 0, headLength, "ISO-8859-1");
+      } catch(UnsupportedEncodingException e) {
+        throw new RuntimeException(e);
+      }
+      for(String line: head.split("\r?\n")) {
+        if(line.regionMatches(true, 0, "Content-Length:", 0, "Content-Length:".length())) {
+          try {
+            contentLength = Long.parseLong(line.substring("Content-Length:".length()).trim());
+          } catch(NumberFormatException e) {
+            return -1;
           }
-          if(isPrintDataDebug) {
-            System.err.println();
+        }
+      }
+      return contentLength < 0? -1: contentLength;
+    }
+
+  }
+
+  /**
+   * The metrics of a web server, which are registered as a platform MXBean named "chrriis.common:type=WebServer,port=&lt;port&gt;" while the web
+   * server runs.
+   */
+  public static interface WebServerMetricsMXBean {
+
+    public long getRequestCount();
+
+    public long getBytesServed();
+
+    public int getActiveConnectionCount();
+
+    /**
+     * @return the number of connections that had to wait for a permit, as the limit of concurrent connections was reached.
+     */
+    public long getPermitWaitCount();
+
+    /**
+     * @return the total time in milliseconds that connections waited for a permit.
+     */
+    public long getPermitWaitTime();
+
+    /**
+     * @return the ratio of class path resource requests that were served from the resource cache.
+     */
+    public double getResourceCacheHitRatio();
+
+    /**
+     * @return the number of requests, across all the web servers, that were served by joining the load of a resource already in progress for a
+     * concurrent request instead of loading it again.
+     */
+    public long getSharedLoadJoinCount();
+
+    /**
+     * @return the ratio of remote resource loads, across all the web servers, that were served from the proxy cache, including the ones that the
+     * origin confirmed as still valid.
+     */
+    public double getProxyCacheHitRatio();
+
+    /**
+     * @return the upper bounds in milliseconds of the buckets of the latency histograms, the last bucket counting the longer latencies.
+     */
+    public long[] getLatencyBucketBounds();
+
+    /**
+     * @return the metrics of each route, which is the kind of content that is requested (like "classpath", "location" or "class/&lt;class name&gt;").
+     */
+    public Map<String, RouteMetrics> getRouteMetrics();
+
+  }
+
+  /**
+   * The metrics of the requests of a route.
+   */
+  public static class RouteMetrics {
+
+    private static final long[] LATENCY_BUCKET_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    private AtomicLong requestCount = new AtomicLong();
+    private AtomicLong errorCount = new AtomicLong();
+    private AtomicLong bytesServed = new AtomicLong();
+    private AtomicLongArray timeToFirstByteHistogram = new AtomicLongArray(LATENCY_BUCKET_BOUNDS.length + 1);
+    private AtomicLongArray totalTimeHistogram = new AtomicLongArray(LATENCY_BUCKET_BOUNDS.length + 1);
+
+    void record(int statusCode, long byteCount, long timeToFirstByte, long totalTime) {
+      requestCount.incrementAndGet();
+      if(statusCode >= 400 || statusCode == 0) {
+        errorCount.incrementAndGet();
+      }
+      bytesServed.addAndGet(byteCount);
+      timeToFirstByteHistogram.incrementAndGet(getLatencyBucket(timeToFirstByte));
+      totalTimeHistogram.incrementAndGet(getLatencyBucket(totalTime));
+    }
+
+    private static int getLatencyBucket(long nanoTime) {
+      long time = nanoTime / 1000000;
+      for(int i=0; i<LATENCY_BUCKET_BOUNDS.length; i++) {
+        if(time < LATENCY_BUCKET_BOUNDS[i]) {
+          return i;
+        }
+      }
+      return LATENCY_BUCKET_BOUNDS.length;
+    }
+
+    private static long[] toArray(AtomicLongArray atomicLongArray) {
+      long[] array = new long[atomicLongArray.length()];
+      for(int i=0; i<array.length; i++) {
+        array[i] = atomicLongArray.get(i);
+      }
+      return array;
+    }
+
+    public long getRequestCount() {
+      return requestCount.get();
+    }
+
+    /**
+     * @return the number of requests that were answered with an error, or not answered.
+     */
+    public long getErrorCount() {
+      return errorCount.get();
+    }
+
+    public long getBytesServed() {
+      return bytesServed.get();
+    }
+
+    /**
+     * @return the number of requests per latency bucket, from the start of the request to the first byte of the response.
+     */
+    public long[] getTimeToFirstByteHistogram() {
+      return toArray(timeToFirstByteHistogram);
+    }
+
+    /**
+     * @return the number of requests per latency bucket, from the start of the request to the end of the response.
+     */
+    public long[] getTotalTimeHistogram() {
+      return toArray(totalTimeHistogram);
+    }
+
+  }
+
+  private static class WebServerMetrics implements WebServerMetricsMXBean {
+
+    private static final int MAX_ROUTE_COUNT = 256;
+
+    private WebServer webServer;
+    private AtomicLong requestCount = new AtomicLong();
+    private AtomicLong bytesServed = new AtomicLong();
+    private AtomicInteger activeConnectionCount = new AtomicInteger();
+    private AtomicLong permitWaitCount = new AtomicLong();
+    private AtomicLong permitWaitTime = new AtomicLong();
+    private ConcurrentHashMap<String, RouteMetrics> routeMetricsMap = new ConcurrentHashMap<String, RouteMetrics>();
+
+    public WebServerMetrics(WebServer webServer) {
+      this.webServer = webServer;
+    }
+
+    public void acquirePermit(Semaphore semaphore) throws InterruptedException {
+      if(semaphore.tryAcquire()) {
+        return;
+      }
+      long startTime = System.nanoTime();
+      try {
+        semaphore.acquire();
+      } finally {
+        permitWaitCount.incrementAndGet();
+        permitWaitTime.addAndGet((System.nanoTime() - startTime) / 1000000);
+      }
+    }
+
+    public void connectionOpened() {
+      activeConnectionCount.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+      activeConnectionCount.decrementAndGet();
+    }
+
+    /**
+     * @param request the request line.
+     * @param statusCode the status code of the response, or 0 if no response was sent.
+     */
+    public void record(String request, int statusCode, long byteCount, long timeToFirstByte, long totalTime) {
+      String method = request;
+      String path = "";
+      int index = request.indexOf(' ');
+      if(index > 0) {
+        method = request.substring(0, index);
+        int endIndex = request.lastIndexOf(' ');
+        path = endIndex > index? request.substring(index + 1, endIndex): request.substring(index + 1);
+      }
+      String route = getRoute(path);
+      RouteMetrics routeMetrics = routeMetricsMap.get(route);
+      if(routeMetrics == null && routeMetricsMap.size() >= MAX_ROUTE_COUNT) {
+        route = "other";
+        routeMetrics = routeMetricsMap.get(route);
+      }
+      if(routeMetrics == null) {
+        routeMetrics = new RouteMetrics();
+        RouteMetrics existingRouteMetrics = routeMetricsMap.putIfAbsent(route, routeMetrics);
+        if(existingRouteMetrics != null) {
+          routeMetrics = existingRouteMetrics;
+        }
+      }
+      routeMetrics.record(statusCode, byteCount, timeToFirstByte, totalTime);
+      requestCount.incrementAndGet();
+      bytesServed.addAndGet(byteCount);
+      AccessLog accessLog = AccessLog.getInstance();
+      if(accessLog != null) {
+        accessLog.log(webServer.getPort(), method, path, route, statusCode, byteCount, timeToFirstByte, totalTime);
+      }
+    }
+
+    private static String getRoute(String path) {
+      String[] segments = path.split("/", 5);
+      if(segments.length < 3) {
+        return "other";
+      }
+      String type = segments[1];
+      if("class".equals(type)) {
+        return segments.length < 4? type: type + "/" + segments[3];
+      }
+      if("classpath".equals(type) || "location".equals(type) || "resource".equals(type)) {
+        return type;
+      }
+      return "other";
+    }
+
+    public long getRequestCount() {
+      return requestCount.get();
+    }
+
+    public long getBytesServed() {
+      return bytesServed.get();
+    }
+
+    public int getActiveConnectionCount() {
+      return activeConnectionCount.get();
+    }
+
+    public long getPermitWaitCount() {
+      return permitWaitCount.get();
+    }
+
+    public long getPermitWaitTime() {
+      return permitWaitTime.get();
+    }
+
+    public double getResourceCacheHitRatio() {
+      long hitCount = webServer.getResourceCacheHitCount();
+      long total = hitCount + webServer.getResourceCacheMissCount();
+      return total == 0? 0: (double)hitCount / total;
+    }
+
+    public long getSharedLoadJoinCount() {
+      return SharedLoad.getJoinCount();
+    }
+
+    public double getProxyCacheHitRatio() {
+      ProxyCache proxyCache = ProxyCache.getInstance();
+      if(proxyCache == null) {
+        return 0;
+      }
+      long hitCount = proxyCache.getHitCount();
+      long total = hitCount + proxyCache.getMissCount();
+      return total == 0? 0: (double)hitCount / total;
+    }
+
+    public long[] getLatencyBucketBounds() {
+      return RouteMetrics.LATENCY_BUCKET_BOUNDS.clone();
+    }
+
+    public Map<String, RouteMetrics> getRouteMetrics() {
+      return new HashMap<String, RouteMetrics>(routeMetricsMap);
+    }
+
+  }
+
+  /**
+   * A log of the requests, with one JSON object per line, which is written by a background thread so that requests do not wait for the disk.
+   */
+  private static class AccessLog {
+
+    private static final int MAX_PENDING_ENTRY_COUNT = 4096;
+
+    private static AccessLog instance;
+    /**
+     * Set after the instance, so that the requests which see it initialized also see the instance without locking.
+     */
+    private static volatile boolean isInitialized;
+
+    /**
+     * @return the access log, or null if it is not activated.
+     */
+    public static AccessLog getInstance() {
+      if(isInitialized) {
+        return instance;
+      }
+      synchronized(AccessLog.class) {
+        if(!isInitialized) {
+          String fileName = NSSystemProperty.WEBSERVER_ACCESSLOG.get();
+          if(fileName != null && fileName.length() > 0) {
+            try {
+              instance = new AccessLog(new File(fileName));
+            } catch(IOException e) {
+              e.printStackTrace();
+            }
           }
+          isInitialized = true;
+        }
+        return instance;
+      }
+    }
+
+    private BlockingQueue<String> entryQueue = new ArrayBlockingQueue<String>(MAX_PENDING_ENTRY_COUNT);
+
+    private AccessLog(File file) throws IOException {
+      final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+      Thread writerThread = new Thread("WebServer Access Log") {
+        @Override
+        public void run() {
           try {
-            resourceStream.close();
+            while(true) {
+              writer.write(entryQueue.take());
+              // Write the entries that are ready before flushing.
+              for(String entry; (entry = entryQueue.poll()) != null; ) {
+                writer.write(entry);
+              }
+              writer.flush();
+            }
           } catch(Exception e) {
             e.printStackTrace();
           }
-        } finally {
-          out.flush();
-          out.close();
-          in.close();
-          socket.close();
         }
-      } catch(Exception e) {
-//        e.printStackTrace();
-      } finally {
-        semaphore.release();
+      };
+      writerThread.setDaemon(true);
+      writerThread.setPriority(Thread.MIN_PRIORITY);
+      writerThread.start();
+    }
+
+    public void log(int port, String method, String path, String route, int statusCode, long byteCount, long timeToFirstByte, long totalTime) {
+      StringBuilder sb = new StringBuilder(128 + path.length());
+      sb.append("{\"time\":").append(System.currentTimeMillis());
+      sb.append(",\"port\":").append(port);
+      sb.append(",\"method\":");
+      appendJSONString(sb, method);
+      sb.append(",\"path\":");
+      appendJSONString(sb, path);
+      sb.append(",\"route\":");
+      appendJSONString(sb, route);
+      sb.append(",\"status\":").append(statusCode);
+      sb.append(",\"bytes\":").append(byteCount);
+      sb.append(",\"ttfbMicros\":").append(timeToFirstByte / 1000);
+      sb.append(",\"totalMicros\":").append(totalTime / 1000);
+      sb.append("}").append(Utils.LINE_SEPARATOR);
+      // When the disk cannot keep up, entries are dropped rather than delaying the requests.
+      entryQueue.offer(sb.toString());
+    }
+
+    private static void appendJSONString(StringBuilder sb, String s) {
+      sb.append('"');
+      for(int i=0; i<s.length(); i++) {
+        char c = s.charAt(i);
+        switch(c) {
+          case '"':
+            sb.append("\\\"");
+            break;
+          case '\\':
+            sb.append("\\\\");
+            break;
+          default:
+            if(c < 0x20) {
+              sb.append(String.format("\\u%04x", (int)c));
+            } else {
+              sb.append(c);
+            }
+            break;
+        }
       }
+      sb.append('"');
+    }
+
+  }
+
+  private WebServerMetrics metrics = new WebServerMetrics(this);
+
+  /**
+   * @return the metrics of the requests served by this web server.
+   */
+  public WebServerMetricsMXBean getMetrics() {
+    return metrics;
+  }
+
+  private ObjectName metricsObjectName;
+
+  private void registerMetrics() {
+    try {
+      ObjectName objectName = new ObjectName("chrriis.common:type=WebServer,port=" + port);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(metrics, WebServerMetricsMXBean.class, true), objectName);
+      metricsObjectName = objectName;
+    } catch(Throwable t) {
+      // JMX may not be available, like in restricted environments.
     }
+  }
 
+  private void unregisterMetrics() {
+    if(metricsObjectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+      } catch(Throwable t) {
+      }
+      metricsObjectName = null;
+    }
   }
 
   private int port;
@@ -494,8 +4425,11 @@ public class WebServer {
 
   private volatile boolean isRunning;
 
+  private volatile WebServerNIOEngine nioEngine;
+
   public void stop() {
     isRunning = false;
+    unregisterMetrics();
     if(serverSocket != null) {
       ServerSocket serverSocket = this.serverSocket;
       this.serverSocket = null;
@@ -504,12 +4438,78 @@ public class WebServer {
       } catch (IOException e) {
       }
     }
+    if(nioEngine != null) {
+      nioEngine.stop();
+      nioEngine = null;
+    }
   }
 
   public boolean isRunning() {
     return isRunning;
   }
 
+  /**
+   * The way the connections of a web server are handled.
+   */
+  public static enum ExecutionMode {
+    /**
+     * Each connection is handled by a platform thread.
+     */
+    THREAD,
+    /**
+     * Each connection is handled by a virtual thread, or by a platform thread when the Java runtime does not support virtual threads.
+     */
+    VIRTUAL_THREAD,
+    /**
+     * The connections are handled by a selector thread and a small pool of workers.
+     */
+    NIO,
+  }
+
+  private int maxConnectionCount;
+
+  /**
+   * Set the maximum number of connections that are handled at once when each connection has its own thread, the other connections waiting for
+   * one to end. This must be called before the web server is started.
+   * @param maxConnectionCount the maximum number of connections, or 0 to use the default.
+   */
+  public void setMaxConnectionCount(int maxConnectionCount) {
+    this.maxConnectionCount = maxConnectionCount;
+  }
+
+  private int getMaxConnectionCount(boolean isVirtualThread) {
+    if(maxConnectionCount > 0) {
+      return maxConnectionCount;
+    }
+    String maxConnectionCountProperty = NSSystemProperty.WEBSERVER_MAXCONNECTIONS.get();
+    if(maxConnectionCountProperty != null) {
+      try {
+        int maxConnectionCount = Integer.parseInt(maxConnectionCountProperty);
+        if(maxConnectionCount > 0) {
+          return maxConnectionCount;
+        }
+      } catch(Exception e) {
+        e.printStackTrace();
+      }
+    }
+    return isVirtualThread? 256: 10;
+  }
+
+  /**
+   * @return a factory of virtual threads, or null if the Java runtime does not support them.
+   */
+  private static ThreadFactory createVirtualThreadFactory() {
+    try {
+      // Virtual threads are not part of the Java versions that are supported, so they are created by reflection.
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "WebServer Connection-", 0L);
+      return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+    } catch(Exception e) {
+      return null;
+    }
+  }
+
   public void start() throws IOException {
     start(true);
   }
@@ -518,17 +4518,36 @@ public class WebServer {
   private volatile int instanceID;
 
   public void start(boolean isDaemon) throws IOException {
+    String engine = NSSystemProperty.WEBSERVER_ENGINE.get();
+    start(isDaemon, "nio".equals(engine)? ExecutionMode.NIO: "virtual".equals(engine)? ExecutionMode.VIRTUAL_THREAD: ExecutionMode.THREAD);
+  }
+
+  /**
+   * Start the web server, handling its connections the given way.
+   */
+  public void start(boolean isDaemon, ExecutionMode executionMode) throws IOException {
     if(isRunning) {
       return;
     }
     isRunning = true;
     instanceID = ObjectRegistry.getInstance().add(this);
-    serverSocket = new ServerSocket();
+    boolean isNIOEngine = executionMode == ExecutionMode.NIO;
+    // The sockets of a server socket channel have a channel, to which files can be transferred directly.
+    ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+    serverSocket = serverSocketChannel.socket();
     serverSocket.bind(new InetSocketAddress(InetAddress.getByName(getHostAddress()), port));
     port = serverSocket.getLocalPort();
     if(Boolean.parseBoolean(NSSystemProperty.WEBSERVER_DEBUG_PRINTPORT.get())) {
       System.err.println("Web Server port: " + port);
     }
+    registerMetrics();
+    if(isNIOEngine) {
+      nioEngine = new WebServerNIOEngine(this, serverSocketChannel);
+      nioEngine.start(isDaemon);
+      return;
+    }
+    final ThreadFactory virtualThreadFactory = executionMode == ExecutionMode.VIRTUAL_THREAD? createVirtualThreadFactory(): null;
+    final Semaphore semaphore = new Semaphore(getMaxConnectionCount(virtualThreadFactory != null));
     Thread listenerThread = new Thread("WebServer") {
       @Override
       public void run() {
@@ -540,13 +4559,16 @@ public class WebServer {
 //            if(!HOST_ADDRESS.equals(hostAddress) && !"127.0.0.1".equals(hostAddress)) {
 //              throw new IllegalStateException("Illegal connection from host " + hostAddress);
 //            }
-            socket.setSoTimeout(10000);
-            try {
-              WebServerConnectionThread.semaphore.acquire();
-            } catch(InterruptedException e) {
+            socket.setSoTimeout(WebServerConnectionThread.KEEP_ALIVE_TIMEOUT);
+            // Like with the NIO engine, the end of a file must not wait for the delayed acknowledgment of the headers written before it.
+            socket.setTcpNoDelay(true);
+            // The connection waits for a permit on its own thread, so that the acceptance of the other connections is never blocked.
+            WebServerConnectionThread webServerConnectionThread = new WebServerConnectionThread(socket, semaphore, metrics);
+            if(virtualThreadFactory != null) {
+              virtualThreadFactory.newThread(webServerConnectionThread).start();
+            } else {
+              webServerConnectionThread.start();
             }
-            WebServerConnectionThread webServerConnectionThread = new WebServerConnectionThread(socket);
-            webServerConnectionThread.start();
           } catch(Exception e) {
             if(serverSocket != null) {
               e.printStackTrace();
@@ -613,7 +4635,7 @@ public class WebServer {
 
   public WebServerContent getURLContent(String resourceURL) {
     try {
-      HTTPRequest httpRequest = new HTTPRequest(new URL(resourceURL).getPath(), null);
+      HTTPRequest httpRequest = new HTTPRequest(new URL(resourceURL).getPath(), (Map<String, String>)null);
       return getWebServerContent(httpRequest);
     } catch(Exception e) {
       e.printStackTrace();
@@ -621,13 +4643,15 @@ public class WebServer {
     }
   }
 
-  private List<ClassLoader> referenceClassLoaderList = new ArrayList<ClassLoader>(1);
+  // Copy on write, as the list is traversed by every request.
+  private List<ClassLoader> referenceClassLoaderList = new CopyOnWriteArrayList<ClassLoader>();
 
   public void addReferenceClassLoader(ClassLoader referenceClassLoader) {
     if(referenceClassLoader == null || referenceClassLoader == getClass().getClassLoader()) {
       return;
     }
     referenceClassLoaderList.add(0, referenceClassLoader);
+    contentMethodMap.clear();
   }
 
   public void removeReferenceClassLoader(ClassLoader referenceClassLoader) {
@@ -635,6 +4659,195 @@ public class WebServer {
       return;
     }
     referenceClassLoaderList.remove(referenceClassLoader);
+    contentMethodMap.clear();
+    if(resourceCache != null) {
+      resourceCache.invalidate(referenceClassLoader);
+    }
+  }
+
+  private List<ResourceArchive> resourceArchiveList = new CopyOnWriteArrayList<ResourceArchive>();
+
+  /**
+   * Mount a zip archive of resources, which are then served for the class path resource URLs matching the paths of its entries, before looking
+   * for them in the class loaders. This is faster than resolving the many files of a distribution (like an HTML editor) through the class path.
+   * The archive is mapped in memory and must not be modified while it is mounted.
+   * @param archiveFile the zip file, where the entries are laid out like in a jar of the class path.
+   * @throws IOException if the archive cannot be read.
+   */
+  public void addResourceArchive(File archiveFile) throws IOException {
+    resourceArchiveList.add(0, new ResourceArchive(archiveFile));
+  }
+
+  /**
+   * Unmount a resource archive. The mapping is only released when it is garbage collected.
+   * @param archiveFile the zip file that was mounted.
+   */
+  public void removeResourceArchive(File archiveFile) {
+    for(ResourceArchive resourceArchive: resourceArchiveList) {
+      if(resourceArchive.getFile().equals(archiveFile)) {
+        resourceArchiveList.remove(resourceArchive);
+      }
+    }
+  }
+
+  private Map<String, Method> contentMethodMap = new ConcurrentHashMap<String, Method>();
+
+  /**
+   * Get the method <code>static WebServerContent getWebServerContent(HTTPRequest)</code> of a class, which is resolved once for all the requests
+   * of dynamic content of that class.
+   */
+  private Method getContentMethod(String className) throws ClassNotFoundException, NoSuchMethodException {
+    Method getWebServerContentMethod = contentMethodMap.get(className);
+    if(getWebServerContentMethod != null) {
+      return getWebServerContentMethod;
+    }
+    Class<?> clazz = null;
+    for(ClassLoader referenceClassLoader: referenceClassLoaderList) {
+      try {
+        clazz = Class.forName(className, true, referenceClassLoader);
+        break;
+      } catch(Exception e) {
+      }
+    }
+    if(clazz == null) {
+      clazz = Class.forName(className);
+    }
+    getWebServerContentMethod = clazz.getDeclaredMethod("getWebServerContent", HTTPRequest.class);
+    getWebServerContentMethod.setAccessible(true);
+    contentMethodMap.put(className, getWebServerContentMethod);
+    return getWebServerContentMethod;
+  }
+
+  private ResourceCache resourceCache = createResourceCache();
+
+  private static ResourceCache createResourceCache() {
+    long maxSize = 16 * 1024 * 1024;
+    String maxSizeProperty = NSSystemProperty.WEBSERVER_RESOURCECACHESIZE.get();
+    if(maxSizeProperty != null) {
+      try {
+        maxSize = Long.parseLong(maxSizeProperty);
+      } catch(Exception e) {
+        e.printStackTrace();
+      }
+    }
+    return maxSize > 0? new ResourceCache(maxSize): null;
+  }
+
+  /**
+   * @return the number of class path resource requests that were served from the resource cache.
+   */
+  public long getResourceCacheHitCount() {
+    return resourceCache == null? 0: resourceCache.getHitCount();
+  }
+
+  /**
+   * @return the number of class path resource requests that were not found in the resource cache.
+   */
+  public long getResourceCacheMissCount() {
+    return resourceCache == null? 0: resourceCache.getMissCount();
+  }
+
+  /**
+   * @return the number of bytes held by the resource cache.
+   */
+  public long getResourceCacheSize() {
+    return resourceCache == null? 0: resourceCache.getSize();
+  }
+
+  private AtomicLong prefetchedResourceCount = new AtomicLong();
+  private AtomicLong prefetchedResourceSize = new AtomicLong();
+
+  /**
+   * Load class path resources in the resource cache, along with their compressed form when they are textual, so that the first requests for
+   * them do not pay for the class loader lookups, the inflation of the jars and the compression. Only resources from jars are prefetched, and
+   * prefetching stops when the prefetched resources use half of the cache.
+   * @param classpathPrefix the path of a resource, or a prefix ending with '/' to prefetch all the resources of a directory (like "/ckeditor/skins/").
+   */
+  public void prefetch(String classpathPrefix) {
+    if(resourceCache == null) {
+      return;
+    }
+    String prefix = classpathPrefix.startsWith("/")? classpathPrefix.substring(1): classpathPrefix;
+    Set<String> resourcePathSet = new LinkedHashSet<String>();
+    if(prefix.endsWith("/")) {
+      List<ClassLoader> classLoaderList = new ArrayList<ClassLoader>(referenceClassLoaderList);
+      ClassLoader classLoader = WebServer.class.getClassLoader();
+      classLoaderList.add(classLoader == null? ClassLoader.getSystemClassLoader(): classLoader);
+      for(ClassLoader referenceClassLoader: classLoaderList) {
+        try {
+          for(Enumeration<URL> en = referenceClassLoader.getResources(prefix); en.hasMoreElements(); ) {
+            URLConnection connection = en.nextElement().openConnection();
+            if(connection instanceof JarURLConnection) {
+              // The jar file is shared with the class loader, so it must not be closed.
+              for(Enumeration<JarEntry> jarEntries = ((JarURLConnection)connection).getJarFile().entries(); jarEntries.hasMoreElements(); ) {
+                JarEntry jarEntry = jarEntries.nextElement();
+                if(!jarEntry.isDirectory() && jarEntry.getName().startsWith(prefix)) {
+                  resourcePathSet.add(jarEntry.getName());
+                }
+              }
+            }
+          }
+        } catch(Exception e) {
+          e.printStackTrace();
+        }
+      }
+    } else {
+      resourcePathSet.add(prefix);
+    }
+    long maxPrefetchedSize = resourceCache.getMaxSize() / 2;
+    for(String resourcePath: resourcePathSet) {
+      if(prefetchedResourceSize.get() >= maxPrefetchedSize || Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      try {
+        ResourceCache.CachedResource cachedResource = resourceCache.getResource(referenceClassLoaderList, resourcePath);
+        if(cachedResource == null || cachedResource.getBytes() == null) {
+          continue;
+        }
+        long size = cachedResource.getBytes().length;
+        URLResourceContent resourceContent = new URLResourceContent(resourceCache, cachedResource);
+        if(size >= WebServerConnectionThread.MIN_COMPRESSION_SIZE && MimeTypes.isTextMimeType(resourceContent.getContentType())) {
+          size += resourceContent.getEncodedBytes("gzip").length;
+        }
+        prefetchedResourceCount.incrementAndGet();
+        prefetchedResourceSize.addAndGet(size);
+      } catch(Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Prefetch class path resources in a low priority thread.
+   * @param classpathPrefixes the paths of the resources or the prefixes of the directories to prefetch.
+   * @see #prefetch(String)
+   */
+  public void prefetchInBackground(final String... classpathPrefixes) {
+    Thread prefetchThread = new Thread("Web Server Prefetch") {
+      @Override
+      public void run() {
+        for(String classpathPrefix: classpathPrefixes) {
+          prefetch(classpathPrefix);
+        }
+      }
+    };
+    prefetchThread.setDaemon(true);
+    prefetchThread.setPriority(Thread.MIN_PRIORITY);
+    prefetchThread.start();
+  }
+
+  /**
+   * @return the number of class path resources that were prefetched.
+   */
+  public long getPrefetchedResourceCount() {
+    return prefetchedResourceCount.get();
+  }
+
+  /**
+   * @return the number of bytes of the prefetched resources, including their compressed form.
+   */
+  public long getPrefetchedResourceSize() {
+    return prefetchedResourceSize.get();
   }
 
   /**
@@ -650,7 +4863,7 @@ public class WebServer {
     public WebServerContent getWebServerContent(HTTPRequest httpRequest);
   }
 
-  private List<WebServerContentProvider> contentProviderList = new ArrayList<WebServerContentProvider>();
+  private List<WebServerContentProvider> contentProviderList = new CopyOnWriteArrayList<WebServerContentProvider>();
 
   /**
    * Add a content provider for content that is not natively supported by the web server.
@@ -689,19 +4902,7 @@ public class WebServer {
         parameter = Utils.decodeURL(parameter.substring(index + 1));
         httpRequest = httpRequest.clone();
         try {
-          Class<?> clazz = null;
-          for(ClassLoader referenceClassLoader: webServer.referenceClassLoaderList) {
-            try {
-              clazz = Class.forName(className, true, referenceClassLoader);
-              break;
-            } catch(Exception e) {
-            }
-          }
-          if(clazz == null) {
-            clazz = Class.forName(className);
-          }
-          Method getWebServerContentMethod = clazz.getDeclaredMethod("getWebServerContent", HTTPRequest.class);
-          getWebServerContentMethod.setAccessible(true);
+          Method getWebServerContentMethod = webServer.getContentMethod(className);
           httpRequest.setResourcePath(parameter);
           return (WebServerContent)getWebServerContentMethod.invoke(null, httpRequest);
         } catch(Exception e) {
@@ -716,29 +4917,37 @@ public class WebServer {
           return null;
         }
         parameter = parameter.substring(index + 1);
-        final String resourcePath = Utils.decodeURL(removeHTMLAnchor(parameter));
-        return new WebServerContent() {
-          @Override
-          public String getContentType() {
-            int index = resourcePath.lastIndexOf('.');
-            return getDefaultMimeType(index == -1? null: resourcePath.substring(index));
+        String resourcePath = Utils.decodeURL(removeHTMLAnchor(parameter));
+        for(ResourceArchive resourceArchive: webServer.resourceArchiveList) {
+          ResourceArchive.ArchiveEntry entry = resourceArchive.getEntry(resourcePath);
+          if(entry != null) {
+            return new ArchiveResourceContent(resourceArchive, resourcePath, entry);
           }
-          @Override
-          public InputStream getInputStream() {
-            try {
-              for(ClassLoader referenceClassLoader: webServer.referenceClassLoaderList) {
-                InputStream in = referenceClassLoader.getResourceAsStream(resourcePath);
-                if(in != null) {
-                  return in;
-                }
-              }
-              return WebServer.class.getResourceAsStream('/' + resourcePath);
-            } catch(Exception e) {
-              e.printStackTrace();
-              return null;
+        }
+        if(webServer.resourceCache != null) {
+          ResourceCache.CachedResource cachedResource = null;
+          try {
+            cachedResource = webServer.resourceCache.getResource(webServer.referenceClassLoaderList, resourcePath);
+          } catch(Exception e) {
+            e.printStackTrace();
+          }
+          return cachedResource == null? new URLResourceContent(null, true): new URLResourceContent(webServer.resourceCache, cachedResource);
+        }
+        URL resourceURL = null;
+        try {
+          for(ClassLoader referenceClassLoader: webServer.referenceClassLoaderList) {
+            resourceURL = referenceClassLoader.getResource(resourcePath);
+            if(resourceURL != null) {
+              break;
             }
           }
-        };
+          if(resourceURL == null) {
+            resourceURL = WebServer.class.getResource('/' + resourcePath);
+          }
+        } catch(Exception e) {
+          e.printStackTrace();
+        }
+        return new URLResourceContent(resourceURL, true);
       }
       if("location".equals(type)) {
         index = parameter.indexOf('/');
@@ -776,6 +4985,31 @@ public class WebServer {
             return super.getContentLength();
           }
           @Override
+          public long getLastModified() {
+            File file = Utils.getLocalFile(resourceURL_);
+            if(file != null) {
+              return file.lastModified();
+            }
+            return super.getLastModified();
+          }
+          @Override
+          public String getETag() {
+            File file = Utils.getLocalFile(resourceURL_);
+            if(file != null && file.isFile()) {
+              return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+            }
+            return null;
+          }
+          @Override
+          public String getCacheControl() {
+            return getETag() == null? null: "no-cache";
+          }
+          @Override
+          public File getFile() {
+            File file = Utils.getLocalFile(resourceURL_);
+            return file != null && file.isFile()? file: null;
+          }
+          @Override
           public String getContentType() {
             int index = resourceURL_.lastIndexOf('.');
             return getDefaultMimeType(index == -1? null: resourceURL_.substring(index));
@@ -783,7 +5017,7 @@ public class WebServer {
           @Override
           public InputStream getInputStream() {
             try {
-              return new URL(resourceURL_).openStream();
+              return SharedLoad.openStream(new URL(resourceURL_));
             } catch(Exception e) {
             }
             try {
@@ -836,6 +5070,31 @@ public class WebServer {
             return super.getContentLength();
           }
           @Override
+          public long getLastModified() {
+            File file = Utils.getLocalFile(resourceURL_);
+            if(file != null) {
+              return file.lastModified();
+            }
+            return super.getLastModified();
+          }
+          @Override
+          public String getETag() {
+            File file = Utils.getLocalFile(resourceURL_);
+            if(file != null && file.isFile()) {
+              return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+            }
+            return null;
+          }
+          @Override
+          public String getCacheControl() {
+            return getETag() == null? null: "no-cache";
+          }
+          @Override
+          public File getFile() {
+            File file = Utils.getLocalFile(resourceURL_);
+            return file != null && file.isFile()? file: null;
+          }
+          @Override
           public String getContentType() {
             int index = resourceURL_.lastIndexOf('.');
             return getDefaultMimeType(index == -1? null: resourceURL_.substring(index));
@@ -843,7 +5102,7 @@ public class WebServer {
           @Override
           public InputStream getInputStream() {
             try {
-              return new URL(resourceURL_).openStream();
+              return SharedLoad.openStream(new URL(resourceURL_));
             } catch(Exception e) {
             }
             try {
@@ -856,7 +5115,15 @@ public class WebServer {
         };
       }
     }
-    for(WebServerContentProvider contentProvider: webServer.contentProviderList) {
+    // The content providers belong to the default web server, which may not exist yet when a named web server receives a request.
+    WebServer defaultWebServer;
+    synchronized(LOCK) {
+      defaultWebServer = webServer;
+    }
+    if(defaultWebServer == null) {
+      return null;
+    }
+    for(WebServerContentProvider contentProvider: defaultWebServer.contentProviderList) {
       WebServerContent webServerContent = contentProvider.getWebServerContent(httpRequest);
       if(webServerContent != null) {
         return webServerContent;
@@ -903,15 +5170,82 @@ public class WebServer {
       if(webServer != null) {
         return webServer;
       }
-      webServer = new WebServer();
-      try {
-        boolean isApplet = "applet".equals(NSSystemProperty.DEPLOYMENT_TYPE.get());
-        webServer.start(!isApplet);
-      } catch(Exception e) {
-        e.printStackTrace();
+      webServer = createWebServer();
+      return webServer;
+    }
+  }
+
+  private static WebServer createWebServer() {
+    WebServer webServer = new WebServer();
+    try {
+      boolean isApplet = "applet".equals(NSSystemProperty.DEPLOYMENT_TYPE.get());
+      webServer.start(!isApplet);
+    } catch(Exception e) {
+      e.printStackTrace();
+    }
+    return webServer;
+  }
+
+  /**
+   * The name of the web server that serves the classes of the peer VM.
+   */
+  public static final String CLASS_LOADING_WEB_SERVER = "classLoading";
+
+  /**
+   * The name of the web server that serves the media files (movies, videos) played by the components.
+   */
+  public static final String MEDIA_WEB_SERVER = "media";
+
+  private static Map<String, WebServer> webServerMap = new HashMap<String, WebServer>();
+
+  /**
+   * Get a web server dedicated to a purpose. It has its own listener thread and its own limit of concurrent connections, so that its load (like a
+   * long media stream) does not delay the requests of the other web servers. It is created and started when it is first requested.
+   * @param name the name of the web server, like CLASS_LOADING_WEB_SERVER or MEDIA_WEB_SERVER, or null for the default web server.
+   * @return the web server.
+   */
+  public static WebServer getWebServer(String name) {
+    if(name == null) {
+      return getDefaultWebServer();
+    }
+    synchronized(LOCK) {
+      WebServer webServer = webServerMap.get(name);
+      if(webServer == null) {
+        webServer = createWebServer();
+        webServerMap.put(name, webServer);
       }
       return webServer;
     }
   }
 
+  /**
+   * Stop a web server dedicated to a purpose, which is created again if it is requested later.
+   * @param name the name of the web server, or null for the default web server.
+   */
+  public static void stopWebServer(String name) {
+    if(name == null) {
+      stopDefaultWebServer();
+      return;
+    }
+    synchronized(LOCK) {
+      WebServer webServer = webServerMap.remove(name);
+      if(webServer != null) {
+        webServer.stop();
+      }
+    }
+  }
+
+  /**
+   * Stop the default web server and the web servers dedicated to a purpose, which are created again if they are requested later.
+   */
+  public static void stopAllWebServers() {
+    synchronized(LOCK) {
+      stopDefaultWebServer();
+      for(WebServer webServer: webServerMap.values()) {
+        webServer.stop();
+      }
+      webServerMap.clear();
+    }
+  }
+
 }
@@ -58,4 +58,15 @@ public abstract class NSComponentOptions {
     return CONSTRAIN_VISIBILITY_OPTION;
   }
 
+  static final String CONSTRAIN_VISIBILITY_WITH_JDK_MIXING_OPTION_KEY = "Constrain Visibility With JDK Mixing";
+  private static final NSOption CONSTRAIN_VISIBILITY_WITH_JDK_MIXING_OPTION = new NSOption(CONSTRAIN_VISIBILITY_WITH_JDK_MIXING_OPTION_KEY);
+
+  /**
+   * Create an option to apply visibility constraints to the component using the heavyweight/lightweight mixing of the JDK: the computed shape is given to the JDK as a mixing cutout instead of being applied with native masking. This requires the mixing to be enabled (system property "sun.awt.disableMixing" set to "false") on a JDK that supports mixing cutouts, otherwise this option behaves like the regular visibility constraint option. It is ignored when the component hierarchy proxying option is used.
+   * @return the option to constrain the visibility using the JDK mixing when available.
+   */
+  public static NSOption constrainVisibilityWithJDKMixing() {
+    return CONSTRAIN_VISIBILITY_WITH_JDK_MIXING_OPTION;
+  }
+
 }
@@ -66,8 +66,71 @@ public enum NSSystemProperty {
    */
   WEBSERVER_DEBUG_PRINTDATA("nativeswing.webserver.debug.printData", Type.READ_WRITE),
 
+  /**
+   * nativeswing.webserver.accessLog
+   * = &lt;path&gt; (default: none)<br/>
+   * Set the file to which the web server appends a line per request, with its
+   * route, status, size and latencies as a JSON object.
+   */
+  WEBSERVER_ACCESSLOG("nativeswing.webserver.accessLog", Type.READ_WRITE),
+
   WEBSERVER_ACTIVATEOLDRESOURCEMETHOD("nativeswing.webserver.activateOldResourceMethod", Type.READ_WRITE),
 
+  /**
+   * nativeswing.webserver.engine
+   * = thread/virtual/nio (default: thread)<br/>
+   * Set how the web server handles its connections: one thread per connection
+   * with a limit of concurrent connections, one virtual thread per connection
+   * when the Java runtime supports them, or a selector thread with a small pool
+   * of workers.
+   */
+  WEBSERVER_ENGINE("nativeswing.webserver.engine", Type.READ_WRITE),
+
+  /**
+   * nativeswing.webserver.maxConnections
+   * = &lt;int&gt; (default: 10, or 256 with virtual threads)<br/>
+   * Set the maximum number of connections that the web server handles at once
+   * when each connection has its own thread.
+   */
+  WEBSERVER_MAXCONNECTIONS("nativeswing.webserver.maxConnections", Type.READ_WRITE),
+
+  /**
+   * nativeswing.webserver.resourceCacheSize
+   * = &lt;long&gt; (default: 16777216)<br/>
+   * Set the maximum number of bytes of class path resources that the web server
+   * keeps in memory, or 0 to disable that cache.
+   */
+  WEBSERVER_RESOURCECACHESIZE("nativeswing.webserver.resourceCacheSize", Type.READ_WRITE),
+
+  /**
+   * nativeswing.webserver.prefetch
+   * = true/false (default: true)<br/>
+   * Set whether the resources of the components found on the class path (like
+   * the HTML editors) should be loaded in the background by the web server
+   * when the native interface is opened.
+   */
+  WEBSERVER_PREFETCH("nativeswing.webserver.prefetch", Type.READ_WRITE),
+
+  /**
+   * nativeswing.webserver.proxyCache
+   * = &lt;path&gt; (default: none)<br/>
+   * Set the directory in which the web server caches the remote resources that
+   * it proxies, following the caching headers of their origin. Cached resources
+   * are served when the origin cannot be reached. The cache is kept in a
+   * "nswebserver-proxycache" sub-directory that it owns: its files that do not
+   * belong to a valid entry are deleted at startup, while files that the cache
+   * did not name are left untouched.
+   */
+  WEBSERVER_PROXYCACHE("nativeswing.webserver.proxyCache", Type.READ_WRITE),
+
+  /**
+   * nativeswing.webserver.proxyCacheSize
+   * = &lt;long&gt; (default: 67108864)<br/>
+   * Set the maximum number of bytes of remote resources that the web server keeps
+   * in its proxy cache.
+   */
+  WEBSERVER_PROXYCACHESIZE("nativeswing.webserver.proxyCacheSize", Type.READ_WRITE),
+
 
   /**
    * nativeswing.components.debug.printOptions
@@ -93,6 +156,15 @@ public enum NSSystemProperty {
    */
   COMPONENTS_FORCESINGLERECTANGLESHAPES("nativeswing.components.forceSingleRectangleShapes", Type.READ_WRITE),
 
+  /**
+   * nativeswing.components.shapeAdjustmentBudget
+   * = &lt;long&gt; (default: 8)<br/>
+   * Set the maximum time in milliseconds spent adjusting the shapes of the native
+   * components in a single event dispatch cycle (when the visibility constraint
+   * option is active). Remaining adjustments are done in the next cycles.
+   */
+  COMPONENTS_SHAPEADJUSTMENTBUDGET("nativeswing.components.shapeAdjustmentBudget", Type.READ_WRITE),
+
 
   /**
    * nativeswing.integration.active
@@ -17,6 +17,7 @@ import java.awt.LayoutManager;
 import java.awt.Panel;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.Shape;
 import java.awt.Toolkit;
 import java.awt.Window;
 import java.awt.event.AWTEventListener;
@@ -28,9 +29,21 @@ import java.awt.event.HierarchyListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
+import java.awt.geom.Area;
 import java.beans.PropertyVetoException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.JComponent;
 import javax.swing.JInternalFrame;
 import javax.swing.JLayeredPane;
 import javax.swing.SwingUtilities;
@@ -57,11 +70,19 @@ class NativeComponentProxyPanel extends NativeComponentProxy {
 
   private boolean isDestructionOnFinalization;
   private boolean isVisibilityConstrained;
+  /**
+   * When the JDK mixing constrains the visibility, a transparent component placed above the embedded panel whose mixing cutout is the part of the
+   * native component that must not be visible.
+   */
+  private MixingCutoutComponent mixingCutoutComponent;
 
-  NativeComponentProxyPanel(NativeComponentWrapper nativeComponentWrapper, boolean isVisibilityConstrained, boolean isDestructionOnFinalization, boolean isProxiedFiliation) {
+  NativeComponentProxyPanel(NativeComponentWrapper nativeComponentWrapper, boolean isVisibilityConstrained, boolean isDestructionOnFinalization, boolean isProxiedFiliation, boolean isJDKMixingUsed) {
     super(nativeComponentWrapper);
     this.isDestructionOnFinalization = isDestructionOnFinalization;
     this.isVisibilityConstrained = isVisibilityConstrained;
+    if(isJDKMixingUsed) {
+      mixingCutoutComponent = new MixingCutoutComponent();
+    }
     hierarchyListener = new HierarchyListener() {
       public void hierarchyChanged(HierarchyEvent e) {
         long changeFlags = e.getChangeFlags();
@@ -175,41 +196,186 @@ class NativeComponentProxyPanel extends NativeComponentProxy {
     }
   }
 
-  private volatile boolean isInvoking;
+  /**
+   * A scheduler that batches the shape adjustments of all the proxies, and spends at most a certain time per event dispatch cycle.
+   * The most visible proxies are adjusted first, and the ones that do not fit in the budget are carried over to the next cycle.
+   */
+  private static class ShapeAdjustmentScheduler implements Runnable {
 
-  private void adjustEmbeddedPanelShape() {
-    if(isInvoking) {
-      return;
+    private static final long BUDGET_NANOS;
+
+    static {
+      long budget = 8;
+      String budgetProperty = NSSystemProperty.COMPONENTS_SHAPEADJUSTMENTBUDGET.get();
+      if(budgetProperty != null) {
+        try {
+          budget = Long.parseLong(budgetProperty);
+        } catch(Exception e) {
+          e.printStackTrace();
+        }
+      }
+      BUDGET_NANOS = budget * 1000000;
     }
-    isInvoking = true;
-    SwingUtilities.invokeLater(new Runnable() {
-      public void run() {
-        isInvoking = false;
-        adjustEmbeddedPanelShape_();
+
+    private static final ShapeAdjustmentScheduler INSTANCE = new ShapeAdjustmentScheduler();
+
+    private Set<NativeComponentProxyPanel> dirtyProxySet = new LinkedHashSet<NativeComponentProxyPanel>();
+    private boolean isScheduled;
+
+    public void schedule(NativeComponentProxyPanel proxy) {
+      synchronized(this) {
+        dirtyProxySet.add(proxy);
+        if(isScheduled) {
+          return;
+        }
+        isScheduled = true;
       }
-    });
+      SwingUtilities.invokeLater(this);
+    }
+
+    public void run() {
+      List<NativeComponentProxyPanel> proxyList;
+      synchronized(this) {
+        isScheduled = false;
+        proxyList = new ArrayList<NativeComponentProxyPanel>(dirtyProxySet);
+        dirtyProxySet.clear();
+      }
+      if(proxyList.size() > 1) {
+        final Map<NativeComponentProxyPanel, Integer> visibilityMap = new HashMap<NativeComponentProxyPanel, Integer>();
+        for(NativeComponentProxyPanel proxy: proxyList) {
+          visibilityMap.put(proxy, proxy.isShowing()? proxy.getWidth() * proxy.getHeight(): -1);
+        }
+        Collections.sort(proxyList, new Comparator<NativeComponentProxyPanel>() {
+          public int compare(NativeComponentProxyPanel o1, NativeComponentProxyPanel o2) {
+            return visibilityMap.get(o2).compareTo(visibilityMap.get(o1));
+          }
+        });
+      }
+      long deadline = System.nanoTime() + BUDGET_NANOS;
+      for(int i=0; i<proxyList.size(); i++) {
+        // At least one proxy is adjusted per cycle so that we always make progress.
+        if(i > 0 && System.nanoTime() - deadline > 0) {
+          synchronized(this) {
+            Set<NativeComponentProxyPanel> newDirtyProxySet = new LinkedHashSet<NativeComponentProxyPanel>(proxyList.subList(i, proxyList.size()));
+            newDirtyProxySet.addAll(dirtyProxySet);
+            dirtyProxySet = newDirtyProxySet;
+            if(isScheduled) {
+              return;
+            }
+            isScheduled = true;
+          }
+          SwingUtilities.invokeLater(this);
+          return;
+        }
+        proxyList.get(i).adjustEmbeddedPanelShape_();
+      }
+    }
+
+  }
+
+  private void adjustEmbeddedPanelShape() {
+    ShapeAdjustmentScheduler.INSTANCE.schedule(this);
   }
 
   private Rectangle[] lastArea = new Rectangle[] {new Rectangle(getSize())};
+  private int lastAreaHashCode = getStructuralHashCode(lastArea);
+
+  private static int getStructuralHashCode(Rectangle[] rectangles) {
+    if(rectangles == null) {
+      return 0;
+    }
+    int hashCode = rectangles.length;
+    for(Rectangle r: rectangles) {
+      hashCode = 31 * hashCode + r.x;
+      hashCode = 31 * hashCode + r.y;
+      hashCode = 31 * hashCode + r.width;
+      hashCode = 31 * hashCode + r.height;
+    }
+    return hashCode;
+  }
 
   private void adjustEmbeddedPanelShape_() {
     if(embeddedPanel == null) {
       return;
     }
-    Rectangle[] rectangles = computePeerShapeArea();
-    if(Arrays.equals(lastArea, rectangles)) {
+    // Coalescing gives a canonical form to compare with the last shape, and fewer rectangles to send to the native masking.
+    Rectangle[] rectangles = UIUtils.coalesce(computePeerShapeArea());
+    int hashCode = getStructuralHashCode(rectangles);
+    // The hash rejects most changes cheaply, the full comparison only happens when the shape is likely the same.
+    if(hashCode == lastAreaHashCode && Arrays.equals(lastArea, rectangles)) {
       embeddedPanel.nativeComponentWrapper.getNativeComponent().repaint();
       return;
     }
     lastArea = rectangles;
+    lastAreaHashCode = hashCode;
     if(rectangles.length == 0) {
       embeddedPanel.setVisible(false);
     } else {
       if(!embeddedPanel.isVisible()) {
         embeddedPanel.setVisible(true);
       }
-      embeddedPanel.applyShape(rectangles);
+      if(mixingCutoutComponent != null) {
+        applyMixingCutoutShape(rectangles);
+      } else {
+        embeddedPanel.applyShape(rectangles);
+      }
+    }
+  }
+
+  private static final Method MIXING_CUTOUT_SHAPE_METHOD = getMixingCutoutShapeMethod();
+
+  private static Method getMixingCutoutShapeMethod() {
+    // Public on the components since Java 9, and a Sun extension since Java 6 update 14.
+    try {
+      return Component.class.getMethod("setMixingCutoutShape", Shape.class);
+    } catch(Exception e) {
+    }
+    try {
+      return Class.forName("com.sun.awt.AWTUtilities").getMethod("setComponentMixingCutoutShape", Component.class, Shape.class);
+    } catch(Exception e) {
+    }
+    return null;
+  }
+
+  static boolean isMixingCutoutSupported() {
+    return MIXING_CUTOUT_SHAPE_METHOD != null;
+  }
+
+  private void applyMixingCutoutShape(Rectangle[] rectangles) {
+    Rectangle bounds = embeddedPanel.getBounds();
+    mixingCutoutComponent.setBounds(bounds);
+    Area cutoutArea = new Area(new Rectangle(bounds.width, bounds.height));
+    for(Rectangle rectangle: rectangles) {
+      cutoutArea.subtract(new Area(rectangle));
+    }
+    mixingCutoutComponent.setCutoutShape(cutoutArea);
+    embeddedPanel.nativeComponentWrapper.getNativeComponent().repaint();
+  }
+
+  private static class MixingCutoutComponent extends JComponent {
+
+    public MixingCutoutComponent() {
+      // An empty cutout leaves the native component fully visible, while no cutout would hide all of it.
+      setCutoutShape(new Rectangle());
+    }
+
+    @Override
+    public boolean contains(int x, int y) {
+      return false;
+    }
+
+    public void setCutoutShape(Shape shape) {
+      try {
+        if(Modifier.isStatic(MIXING_CUTOUT_SHAPE_METHOD.getModifiers())) {
+          MIXING_CUTOUT_SHAPE_METHOD.invoke(null, this, shape);
+        } else {
+          MIXING_CUTOUT_SHAPE_METHOD.invoke(this, shape);
+        }
+      } catch(Exception e) {
+        e.printStackTrace();
+      }
     }
+
   }
 
   private Rectangle[] computePeerShapeArea() {
@@ -445,6 +611,7 @@ class NativeComponentProxyPanel extends NativeComponentProxy {
       embeddedPanel.add(nativeComponentWrapper.getNativeComponent(), BorderLayout.CENTER);
     }
     lastArea = null;
+    lastAreaHashCode = 0;
     adjustEmbeddedPanelBounds();
     SwingUtilities.invokeLater(new Runnable() {
       public void run() {
@@ -460,6 +627,10 @@ class NativeComponentProxyPanel extends NativeComponentProxy {
         UIUtils.revalidate(layeredPane);
         layeredPane.repaint();
       } else {
+        if(mixingCutoutComponent != null) {
+          // Added first to be above the embedded panel, which remains the component that the clip layout places.
+          add(mixingCutoutComponent);
+        }
         add(embeddedPanel);
         revalidate();
         repaint();
@@ -517,6 +688,9 @@ class NativeComponentProxyPanel extends NativeComponentProxy {
     if(parent != null) {
       panel.isRemovingFromParent = true;
       parent.remove(panel);
+      if(mixingCutoutComponent != null && mixingCutoutComponent.getParent() == parent) {
+        parent.remove(mixingCutoutComponent);
+      }
       parent.invalidate();
       parent.validate();
       parent.repaint();
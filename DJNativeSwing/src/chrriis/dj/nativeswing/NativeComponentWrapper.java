@@ -182,7 +182,17 @@ public class NativeComponentWrapper {
     Boolean deferredDestruction = optionMap.get(NSComponentOptions.DESTROY_ON_FINALIZATION_OPTION_KEY) != null? Boolean.TRUE: null;
     Boolean componentHierarchyProxying = optionMap.get(NSComponentOptions.PROXY_COMPONENT_HIERARCHY_OPTION_KEY) != null? Boolean.TRUE: null;
     Boolean visibilityConstraint = optionMap.get(NSComponentOptions.CONSTRAIN_VISIBILITY_OPTION_KEY) != null? Boolean.TRUE: null;
-    if(Boolean.valueOf(NSSystemProperty.INTEGRATION_USEDEFAULTCLIPPING.get()) || visibilityConstraint == null && componentHierarchyProxying == null) {
+    boolean isDefaultClipping = Boolean.valueOf(NSSystemProperty.INTEGRATION_USEDEFAULTCLIPPING.get());
+    if(optionMap.get(NSComponentOptions.CONSTRAIN_VISIBILITY_WITH_JDK_MIXING_OPTION_KEY) != null && componentHierarchyProxying == null && deferredDestruction == null) {
+      if(isDefaultClipping && NativeComponentProxyPanel.isMixingCutoutSupported()) {
+        // The JDK cuts the native component along the shape that we compute, without native masking.
+        return new NativeComponentProxyPanel(this, true, false, false, true);
+      }
+      if(!isDefaultClipping && isJNAPresent()) {
+        visibilityConstraint = Boolean.TRUE;
+      }
+    }
+    if(isDefaultClipping || visibilityConstraint == null && componentHierarchyProxying == null) {
       if(deferredDestruction != null && componentHierarchyProxying == null) {
         componentHierarchyProxying = true;
       }
@@ -204,12 +214,12 @@ public class NativeComponentWrapper {
       componentHierarchyProxying = true;
     }
     if(componentHierarchyProxying != null) {
-      return new NativeComponentProxyPanel(this, Boolean.TRUE.equals(visibilityConstraint), Boolean.TRUE.equals(deferredDestruction), Boolean.TRUE.equals(componentHierarchyProxying));
+      return new NativeComponentProxyPanel(this, Boolean.TRUE.equals(visibilityConstraint), Boolean.TRUE.equals(deferredDestruction), Boolean.TRUE.equals(componentHierarchyProxying), false);
     }
     if(visibilityConstraint == null) {
       return new SimpleNativeComponentHolder(this);
     }
-    return new NativeComponentProxyPanel(this, Boolean.TRUE.equals(visibilityConstraint), Boolean.TRUE.equals(deferredDestruction), Boolean.TRUE.equals(componentHierarchyProxying));
+    return new NativeComponentProxyPanel(this, Boolean.TRUE.equals(visibilityConstraint), Boolean.TRUE.equals(deferredDestruction), Boolean.TRUE.equals(componentHierarchyProxying), false);
   }
 
   private static boolean isJNAPresent() {
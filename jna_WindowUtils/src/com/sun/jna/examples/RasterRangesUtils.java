@@ -21,12 +21,6 @@ import java.awt.image.MultiPixelPackedSampleModel;
 import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.awt.image.SinglePixelPackedSampleModel;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * Methods that are useful to decompose a raster into a set of rectangles.
@@ -38,17 +32,14 @@ import java.util.TreeSet;
  * @author Olivier Chafik
  */
 public class RasterRangesUtils {
-    /// Masks used to isolate the current column in a set of 8 binary columns packed in a byte
-    private static final int[] subColMasks = new int[] {
-        0x0080, 0x0040, 0x0020, 0x0010,
-        0x0008, 0x0004, 0x0002, 0x0001
-    };
+    /// Bit-reversed values of all bytes, to turn the leftmost pixel of a packed byte into its lowest bit
+    private static final int[] reversedBits = new int[256];
 
-    private static final Comparator COMPARATOR = new Comparator() {
-        public int compare(Object o1, Object o2) {
-            return ((Rectangle)o1).x - ((Rectangle)o2).x;
+    static {
+        for (int i = 0; i < 256; i++) {
+            reversedBits[i] = Integer.reverse(i) >>> 24;
         }
-    };
+    }
 
     /**
      * Abstraction of a sink for ranges.
@@ -65,6 +56,86 @@ public class RasterRangesUtils {
         boolean outputRange(int x, int y, int w, int h);
     }
 
+    /**
+     * Collects the horizontal runs of each row, in increasing x order, and
+     * merges the runs that are identical to a run of the previous row into a
+     * single rectangle.
+     */
+    private static class RangesCoalescer {
+        private final RangesOutput out;
+        private int row;
+        private int[] openX = new int[16];
+        private int[] openW = new int[16];
+        private int[] openY = new int[16];
+        private int openCount;
+        private int[] curX = new int[16];
+        private int[] curW = new int[16];
+        private int[] curY = new int[16];
+        private int curCount;
+        private boolean succeeded = true;
+
+        public RangesCoalescer(RangesOutput out) {
+            this.out = out;
+        }
+
+        public void addRun(int x1, int x2) {
+            if (curCount == curX.length) {
+                int length = curCount * 2;
+                int[] newX = new int[length];
+                int[] newW = new int[length];
+                int[] newY = new int[length];
+                System.arraycopy(curX, 0, newX, 0, curCount);
+                System.arraycopy(curW, 0, newW, 0, curCount);
+                curX = newX;
+                curW = newW;
+                curY = newY;
+            }
+            curX[curCount] = x1;
+            curW[curCount] = x2 - x1;
+            curCount++;
+        }
+
+        private void close(int i) {
+            if (succeeded && !out.outputRange(openX[i], openY[i], openW[i], row - openY[i])) {
+                succeeded = false;
+            }
+        }
+
+        /** @return false if the output failed, in which case scanning can stop. */
+        public boolean endRow() {
+            int j = 0;
+            for (int i = 0; i < curCount; i++) {
+                while (j < openCount && openX[j] < curX[i]) {
+                    close(j++);
+                }
+                if (j < openCount && openX[j] == curX[i] && openW[j] == curW[i]) {
+                    curY[i] = openY[j++];
+                }
+                else {
+                    curY[i] = row;
+                }
+            }
+            while (j < openCount) {
+                close(j++);
+            }
+            int[] tmp = openX; openX = curX; curX = tmp;
+            tmp = openW; openW = curW; curW = tmp;
+            tmp = openY; openY = curY; curY = tmp;
+            openCount = curCount;
+            curCount = 0;
+            row++;
+            return succeeded;
+        }
+
+        public boolean finish() {
+            for (int j = 0; j < openCount; j++) {
+                close(j);
+            }
+            openCount = 0;
+            return succeeded;
+        }
+    }
+
     /**
      * Outputs ranges of occupied pixels.
      * In a raster that has an alpha layer, a pixel is occupied if its alpha value is not null.
@@ -79,23 +150,37 @@ public class RasterRangesUtils {
         boolean hasAlpha = sampleModel.getNumBands() == 4;
 
         // Try to use the underlying data array directly for a few common raster formats
-        if (raster.getParent() == null && bounds.x == 0 && bounds.y == 0) {
-            // No support for subraster (as obtained with Image.getSubimage(...))
-
+        if (bounds.x == 0 && bounds.y == 0) {
             DataBuffer data = raster.getDataBuffer();
             if (data.getNumBanks() == 1) {
                 // There is always a single bank for all BufferedImage types, except maybe TYPE_CUSTOM
 
                 if (sampleModel instanceof MultiPixelPackedSampleModel) {
                     MultiPixelPackedSampleModel packedSampleModel = (MultiPixelPackedSampleModel)sampleModel;
-                    if (packedSampleModel.getPixelBitStride() == 1) {
-                        // TYPE_BYTE_BINARY
+                    if (packedSampleModel.getPixelBitStride() == 1 && raster.getParent() == null) {
+                        // TYPE_BYTE_BINARY. No support for subraster (as obtained with Image.getSubimage(...))
                         return outputOccupiedRangesOfBinaryPixels(((DataBufferByte)data).getData(), bounds.width, bounds.height, out);
                     }
                 } else if (sampleModel instanceof SinglePixelPackedSampleModel) {
                     if (sampleModel.getDataType() == DataBuffer.TYPE_INT) {
-                        // TYPE_INT_ARGB, TYPE_INT_ARGB_PRE, TYPE_INT_BGR or TYPE_INT_RGB
-                        return outputOccupiedRanges(((DataBufferInt)data).getData(), bounds.width, bounds.height, hasAlpha ? 0xff000000 : 0xffffff, out);
+                        // TYPE_INT_ARGB, TYPE_INT_ARGB_PRE, TYPE_INT_BGR or TYPE_INT_RGB, or a band subset
+                        // of those like the alpha raster of an image.
+                        SinglePixelPackedSampleModel packedSampleModel = (SinglePixelPackedSampleModel)sampleModel;
+                        int[] bitMasks = packedSampleModel.getBitMasks();
+                        int occupationMask = 0;
+                        if (hasAlpha) {
+                            occupationMask = bitMasks[3];
+                        }
+                        else {
+                            for (int i = 0; i < bitMasks.length; i++) {
+                                occupationMask |= bitMasks[i];
+                            }
+                        }
+                        int scanlineStride = packedSampleModel.getScanlineStride();
+                        int offset = data.getOffset()
+                            - raster.getSampleModelTranslateY() * scanlineStride
+                            - raster.getSampleModelTranslateX();
+                        return outputOccupiedRanges(((DataBufferInt)data).getData(), offset, scanlineStride, bounds.width, bounds.height, occupationMask, out);
                     }
                     // TODO could easily handle cases of TYPE_USHORT_GRAY and TYPE_BYTE_GRAY.
                 }
@@ -109,6 +194,8 @@ public class RasterRangesUtils {
 
     /**
      * Output the non-null values of a binary image as ranges of contiguous values.
+     * The bits are processed a long word at a time, so that empty and full
+     * areas are skipped quickly and runs are found with bit scans.
      * @param binaryBits byte-packed binary bits of an image
      * @param w width of the image (in pixels)
      * @param h height of the image
@@ -116,66 +203,57 @@ public class RasterRangesUtils {
      * @return true if the output succeeded, false otherwise
      */
     public static boolean outputOccupiedRangesOfBinaryPixels(byte[] binaryBits, int w, int h, RangesOutput out) {
-        Set rects = new HashSet();
-        Set prevLine = Collections.EMPTY_SET;
+        RangesCoalescer coalescer = new RangesCoalescer(out);
         int scanlineBytes = binaryBits.length / h;
         for (int row = 0; row < h; row++) {
-            Set curLine = new TreeSet(COMPARATOR);
             int rowOffsetBytes = row * scanlineBytes;
             int startCol = -1;
-            // Look at each batch of 8 columns in this row
-            for (int byteCol = 0; byteCol < scanlineBytes; byteCol++) {
-                int firstByteCol = byteCol << 3;
-                byte byteColBits = binaryBits[rowOffsetBytes + byteCol];
-                if (byteColBits == 0) {
-                    // all 8 bits are zeroes
+            // Look at each batch of 64 columns in this row
+            for (int byteCol = 0; byteCol < scanlineBytes && (byteCol << 3) < w; byteCol += 8) {
+                int firstCol = byteCol << 3;
+                int byteCount = Math.min(8, scanlineBytes - byteCol);
+                // Bit i of the word is the pixel at column firstCol + i
+                long word = 0;
+                for (int i = 0; i < byteCount; i++) {
+                    word |= (long)reversedBits[binaryBits[rowOffsetBytes + byteCol + i] & 0xff] << (i << 3);
+                }
+                int validBits = w - firstCol;
+                if (validBits < 64) {
+                    // The padding bits are cleared, which also ends a region at the edge of the image
+                    word &= (1L << validBits) - 1;
+                }
+                if (startCol < 0 ? word == 0 : word == -1L) {
+                    // No change of state in these 64 columns
+                    continue;
+                }
+                int bit = 0;
+                while (true) {
+                    // Find the next bit that differs from the current state
+                    long transitions = (startCol >= 0 ? ~word : word) >>> bit;
+                    if (transitions == 0) {
+                        break;
+                    }
+                    bit += Long.numberOfTrailingZeros(transitions);
                     if (startCol >= 0) {
                         // end of current region
-                        curLine.add(new Rectangle(startCol, row, firstByteCol - startCol, 1));
+                        coalescer.addRun(startCol, firstCol + bit);
                         startCol = -1;
                     }
-                } else if (byteColBits == 0xff) {
-                    // all 8 bits are ones
-                    if (startCol < 0) {
+                    else {
                         // start of new region
-                        startCol = firstByteCol;
-                    }
-                } else {
-                    // mixed case : some bits are ones, others are zeroes
-                    for (int subCol = 0; subCol < 8; subCol++) {
-                        int col = firstByteCol | subCol;
-                        if ((byteColBits & subColMasks[subCol]) != 0) {
-                            if (startCol < 0) {
-                                // start of new region
-                                startCol = col;
-                            }
-                        } else {
-                            if (startCol >= 0) {
-                                // end of current region
-                                curLine.add(new Rectangle(startCol, row, col - startCol, 1));
-                                startCol = -1;
-                            }
-                        }
+                        startCol = firstCol + bit;
                     }
                 }
             }
             if (startCol >= 0) {
                 // end of last region
-                curLine.add(new Rectangle(startCol, row, w - startCol, 1));
+                coalescer.addRun(startCol, w);
             }
-            Set unmerged = mergeRects(prevLine, curLine);
-            rects.addAll(unmerged);
-            prevLine = curLine;
-        }
-        // Add anything left over
-        rects.addAll(prevLine);
-        for (Iterator i=rects.iterator();i.hasNext();) {
-            Rectangle r = (Rectangle)i.next();
-            if (!out.outputRange(r.x, r.y, r.width, r.height)) {
+            if (!coalescer.endRow()) {
                 return false;
             }
         }
-        return true;
+        return coalescer.finish();
     }
 
     /**
@@ -189,70 +267,46 @@ public class RasterRangesUtils {
      * @return true if the output succeeded, false otherwise
      */
     public static boolean outputOccupiedRanges(int[] pixels, int w, int h, int occupationMask, RangesOutput out) {
-        Set rects = new HashSet();
-        Set prevLine = Collections.EMPTY_SET;
-        for (int row = 0; row < h; row++) {
-            Set curLine = new TreeSet(COMPARATOR);
-            int idxOffset = row * w;
-            int startCol = -1;
-
-            for (int col = 0; col < w; col++) {
-                if ((pixels[idxOffset + col] & occupationMask) != 0) {
-                    if (startCol < 0) {
-                        startCol = col;
-                    }
-                } else {
-                    if (startCol >= 0) {
-                        // end of current region
-                        curLine.add(new Rectangle(startCol, row, col-startCol, 1));
-                        startCol = -1;
-                    }
-                }
-            }
-            if (startCol >= 0) {
-                // end of last region of current row
-                curLine.add(new Rectangle(startCol, row, w-startCol, 1));
-            }
-            Set unmerged = mergeRects(prevLine, curLine);
-            rects.addAll(unmerged);
-            prevLine = curLine;
-        }
-        // Add anything left over
-        rects.addAll(prevLine);
-        for (Iterator i=rects.iterator();i.hasNext();) {
-            Rectangle r = (Rectangle)i.next();
-            if (!out.outputRange(r.x, r.y, r.width, r.height)) {
-                return false;
-            }
-        }
-        return true;
+        return outputOccupiedRanges(pixels, 0, w, w, h, occupationMask, out);
     }
 
-    private static Set mergeRects(Set prev, Set current) {
-        Set unmerged = new HashSet(prev);
-        if (!prev.isEmpty() && !current.isEmpty()) {
-            Rectangle[] pr = (Rectangle[])prev.toArray(new Rectangle[prev.size()]);
-            Rectangle[] cr = (Rectangle[])current.toArray(new Rectangle[current.size()]);
-            int ipr = 0;
-            int icr = 0;
-            while (ipr < pr.length && icr < cr.length) {
-                while (cr[icr].x < pr[ipr].x) {
-                    if (++icr == cr.length) {
-                        return unmerged;
-                    }
+    /**
+     * Output the occupied values of an integer-pixels image as ranges of contiguous values.
+     * A pixel is considered occupied if the bitwise AND of its integer value with the provided occupationMask is not null.
+     * @param pixels integer values of the pixels of an image
+     * @param offset index of the top-left pixel in the array
+     * @param scanlineStride distance between the starts of two consecutive rows in the array
+     * @param w width of the image (in pixels)
+     * @param h height of the image
+     * @param occupationMask mask used to select which bits are used in a pixel to check its occupied status. 0xff000000 would only take the alpha layer into account, for instance.
+     * @param out where to output all the contiguous ranges of non occupied pixels
+     * @return true if the output succeeded, false otherwise
+     */
+    public static boolean outputOccupiedRanges(int[] pixels, int offset, int scanlineStride, int w, int h, int occupationMask, RangesOutput out) {
+        RangesCoalescer coalescer = new RangesCoalescer(out);
+        for (int row = 0; row < h; row++) {
+            int rowOffset = offset + row * scanlineStride;
+            int rowEnd = rowOffset + w;
+            int idx = rowOffset;
+            while (idx < rowEnd) {
+                // Skip the non occupied pixels, then the occupied ones
+                while (idx < rowEnd && (pixels[idx] & occupationMask) == 0) {
+                    idx++;
                 }
-                if (cr[icr].x == pr[ipr].x && cr[icr].width == pr[ipr].width) {
-                    unmerged.remove(pr[ipr]);
-                    cr[icr].y = pr[ipr].y;
-                    cr[icr].height = pr[ipr].height + 1;
-                    ++icr;
+                if (idx == rowEnd) {
+                    break;
                 }
-                else {
-                    ++ipr;
+                int start = idx;
+                while (idx < rowEnd && (pixels[idx] & occupationMask) != 0) {
+                    idx++;
                 }
+                coalescer.addRun(start - rowOffset, idx - rowOffset);
+            }
+            if (!coalescer.endRow()) {
+                return false;
             }
         }
-        return unmerged;
+        return coalescer.finish();
     }
 
 }
@@ -44,9 +44,15 @@ import java.awt.event.WindowEvent;
 import java.awt.geom.Area;
 import java.awt.geom.PathIterator;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.Raster;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import javax.swing.Icon;
 import javax.swing.JComponent;
@@ -1235,6 +1241,33 @@ public class WindowUtils {
         }
     }
     private static class X11WindowUtils extends NativeWindowUtils {
+        private static Display sharedDisplay;
+        private static boolean isSharedDisplayOpened;
+
+        /**
+         * Get the display connection used for shaping, which is opened once
+         * per JVM and closed on exit. Callers must synchronize on
+         * X11WindowUtils.class, and flush after their requests.
+         */
+        private static Display getSharedDisplay() {
+            if (!isSharedDisplayOpened) {
+                isSharedDisplayOpened = true;
+                sharedDisplay = X11.INSTANCE.XOpenDisplay(null);
+                if (sharedDisplay != null) {
+                    Runtime.getRuntime().addShutdownHook(new Thread("X11 Display Closer") {
+                        @Override
+                        public void run() {
+                            synchronized (X11WindowUtils.class) {
+                                X11.INSTANCE.XCloseDisplay(sharedDisplay);
+                                sharedDisplay = null;
+                            }
+                        }
+                    });
+                }
+            }
+            return sharedDisplay;
+        }
+
         private static Pixmap createBitmap(final Display dpy,
                                            X11.Window win,
                                            Raster raster) {
@@ -1470,9 +1503,41 @@ public class WindowUtils {
                 super(oldContent);
             }
 
+            // The native resources are kept between paints, and only
+            // recreated when the window or the size of the pane changes.
+            private long windowID;
+            private X11.Window contentWindow;
+            private final Point contentOffset = new Point();
+            private X11.GC gc;
+            private X11.XImage image;
             private Memory buffer;
-            private int[] pixels;
-            private final int[] pixel = new int[4];
+            private int imageWidth;
+            private int imageHeight;
+
+            @Override
+            public void removeNotify() {
+                synchronized (X11WindowUtils.class) {
+                    freeResources(getSharedDisplay());
+                }
+                super.removeNotify();
+            }
+
+            private void freeResources(X11.Display dpy) {
+                X11 x11 = X11.INSTANCE;
+                if (image != null) {
+                    // The data is owned by the Memory buffer, so only the structure is freed
+                    x11.XFree(image.getPointer());
+                    image = null;
+                }
+                if (gc != null && dpy != null) {
+                    x11.XFreeGC(dpy, gc);
+                }
+                gc = null;
+                buffer = null;
+                contentWindow = null;
+                windowID = 0;
+            }
+
             // Painting directly to the original Graphics
             // fails to properly composite unless the destination
             // is pure black.  Too bad.
@@ -1480,44 +1545,56 @@ public class WindowUtils {
 			protected void paintDirect(BufferedImage buf, Rectangle bounds) {
                 Window window = SwingUtilities.getWindowAncestor(this);
                 X11 x11 = X11.INSTANCE;
-                X11.Display dpy = x11.XOpenDisplay(null);
-                X11.Window win = getDrawable(window);
-                Point offset = new Point();
-                win = getContentWindow(window, dpy, win, offset);
-                X11.GC gc = x11.XCreateGC(dpy, win, new NativeLong(0), null);
-
-                Raster raster = buf.getData();
-                int w = bounds.width;
-                int h = bounds.height;
-                if (buffer == null || buffer.size() != w*h*4) {
-                    buffer = new Memory(w*h*4);
-                    pixels = new int[w*h];
+                Rectangle damage = bounds.intersection(new Rectangle(0, 0, getWidth(), getHeight()));
+                if (window == null || damage.isEmpty()) {
+                    return;
                 }
-                for (int y=0;y<h;y++) {
-                    for (int x=0;x < w;x++) {
-                        raster.getPixel(x, y, pixel);
-                        int alpha = pixel[3]&0xFF;
-                        int red = pixel[2]&0xFF;
-                        int green = pixel[1]&0xFF;
-                        int blue = pixel[0]&0xFF;
-                        // TODO: use visual RGB masks to position bits
-                        // This layout (ABGR) works empirically
-                        pixels[y*w + x] = (alpha<<24)|(blue<<16)|(green<<8)|red;
+                synchronized (X11WindowUtils.class) {
+                    X11.Display dpy = getSharedDisplay();
+                    if (dpy == null) {
+                        return;
+                    }
+                    X11.Window win = getDrawable(window);
+                    if (win == null) {
+                        return;
+                    }
+                    if (win.longValue() != windowID) {
+                        freeResources(dpy);
+                        windowID = win.longValue();
+                        contentOffset.setLocation(0, 0);
+                        contentWindow = getContentWindow(window, dpy, win, contentOffset);
+                        gc = x11.XCreateGC(dpy, contentWindow, new NativeLong(0), null);
+                    }
+                    int w = getWidth();
+                    int h = getHeight();
+                    if (image == null || imageWidth != w || imageHeight != h) {
+                        if (image != null) {
+                            x11.XFree(image.getPointer());
+                        }
+                        imageWidth = w;
+                        imageHeight = h;
+                        buffer = new Memory(w*h*4);
+                        X11.XWindowAttributes xwa = new X11.XWindowAttributes();
+                        x11.XGetWindowAttributes(dpy, contentWindow, xwa);
+                        image = x11.XCreateImage(dpy, xwa.visual, 32, X11.ZPixmap,
+                                                 0, buffer, w, h, 32, w * 4);
+                    }
+                    // The ARGB ints of the image are what the 32-bit visual
+                    // expects, so the damaged rows are copied in bulk.
+                    // TODO: use visual RGB masks to position bits
+                    int[] pixels = ((DataBufferInt)buf.getRaster().getDataBuffer()).getData();
+                    int bufWidth = buf.getWidth();
+                    int srcX = damage.x - bounds.x;
+                    int srcY = damage.y - bounds.y;
+                    for (int y=0;y<damage.height;y++) {
+                        buffer.write(((long)(damage.y + y) * w + damage.x) * 4,
+                                     pixels, (srcY + y) * bufWidth + srcX, damage.width);
                     }
+                    x11.XPutImage(dpy, contentWindow, gc, image, damage.x, damage.y,
+                                  contentOffset.x + damage.x, contentOffset.y + damage.y,
+                                  damage.width, damage.height);
+                    x11.XFlush(dpy);
                 }
-                X11.XWindowAttributes xwa = new X11.XWindowAttributes();
-                x11.XGetWindowAttributes(dpy, win, xwa);
-                X11.XImage image =
-                    x11.XCreateImage(dpy, xwa.visual, 32, X11.ZPixmap,
-                                     0, buffer, w, h, 32, w * 4);
-                buffer.write(0, pixels, 0, pixels.length);
-                offset.x += bounds.x;
-                offset.y += bounds.y;
-                x11.XPutImage(dpy, win, gc, image, 0, 0, offset.x, offset.y, w, h);
-
-                x11.XFree(image.getPointer());
-                x11.XFreeGC(dpy, gc);
-                x11.XCloseDisplay(dpy);
             }
         }
 
@@ -1569,24 +1646,27 @@ public class WindowUtils {
             Runnable action = new Runnable() {
                 public void run() {
                     X11 x11 = X11.INSTANCE;
-                    Display dpy = x11.XOpenDisplay(null);
-                    if (dpy == null) {
-                        return;
-                    }
                     Pixmap pm = null;
-                    try {
-                        X11.Window win = getDrawable(w);
-                        pm = src.getPixmap(dpy, win);
-                        Xext ext = Xext.INSTANCE;
-                        ext.XShapeCombineMask(dpy, win, X11.Xext.ShapeBounding,
-                                              0, 0, pm == null ? Pixmap.None : pm,
-                                              X11.Xext.ShapeSet);
-                    }
-                    finally {
-                        if (pm != null) {
-                            x11.XFreePixmap(dpy, pm);
+                    synchronized (X11WindowUtils.class) {
+                        Display dpy = getSharedDisplay();
+                        if (dpy == null) {
+                            return;
+                        }
+                        try {
+                            X11.Window win = getDrawable(w);
+                            pm = src.getPixmap(dpy, win);
+                            Xext ext = Xext.INSTANCE;
+                            ext.XShapeCombineMask(dpy, win, X11.Xext.ShapeBounding,
+                                                  0, 0, pm == null ? Pixmap.None : pm,
+                                                  X11.Xext.ShapeSet);
+                            appliedMasks.remove(w);
+                        }
+                        finally {
+                            if (pm != null) {
+                                x11.XFreePixmap(dpy, pm);
+                            }
+                            x11.XFlush(dpy);
                         }
-                        x11.XCloseDisplay(dpy);
                     }
                     setForceHeavyweightPopups(getWindow(w), pm != null);
                 }
@@ -1603,72 +1683,117 @@ public class WindowUtils {
             });
         }
 
-		private Pixmap createBitmap(final Display dpy, X11.Window win,
-				Rectangle[] rectangles) {
-			final X11 x11 = X11.INSTANCE;
-			Rectangle bounds = new Rectangle();
-			if (rectangles.length > 0) {
-				bounds.setBounds(rectangles[0]);
-				for (int i = 1; i < rectangles.length; i++) {
-					Rectangle.union(bounds, rectangles[i], bounds);
-				}
+		/** The shape last applied to a window, to send only the difference on the next update. */
+		private static class AppliedMask {
+			private final long windowID;
+			private final Rectangle[] rectangles;
+			public AppliedMask(long windowID, Rectangle[] rectangles) {
+				this.windowID = windowID;
+				this.rectangles = rectangles;
 			}
-			int width = bounds.x + bounds.width;
-			int height = bounds.y + bounds.height;
-			final Pixmap pm = x11.XCreatePixmap(dpy, win, width, height, 1);
-			final GC gc = x11.XCreateGC(dpy, pm, new NativeLong(0), null);
-			if (gc == null) {
-				return null;
+		}
+
+		private final Map appliedMasks = new WeakHashMap();
+
+		/**
+		 * Clamp a value to the 16 bit range of the X protocol coordinates and
+		 * dimensions, so that it does not wrap around when cast.
+		 */
+		private static short clampToShort(int value) {
+			return (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+		}
+
+		private static void combineRectangles(Display dpy, X11.Window win,
+				List rlist, int op) {
+			X11.XRectangle[] rects = null;
+			if (!rlist.isEmpty()) {
+				rects = (X11.XRectangle[])new X11.XRectangle().toArray(rlist.size());
+				for (int i = 0; i < rects.length; i++) {
+					Rectangle r = (Rectangle)rlist.get(i);
+					// The part of the rectangle outside of the coordinate range
+					// is dropped before the values are clamped.
+					int x1 = Math.max(r.x, Short.MIN_VALUE);
+					int y1 = Math.max(r.y, Short.MIN_VALUE);
+					int x2 = (int)Math.min((long)r.x + r.width, Short.MAX_VALUE);
+					int y2 = (int)Math.min((long)r.y + r.height, Short.MAX_VALUE);
+					rects[i].x = clampToShort(x1);
+					rects[i].y = clampToShort(y1);
+					rects[i].width = clampToShort(Math.max(0, x2 - x1));
+					rects[i].height = clampToShort(Math.max(0, y2 - y1));
+				}
 			}
-			x11.XSetForeground(dpy, gc, new NativeLong(0));
-			x11.XFillRectangle(dpy, pm, gc, 0, 0, width, height);
-			final int UNMASKED = 1;
-			x11.XSetForeground(dpy, gc, new NativeLong(UNMASKED));
-			X11.XWindowAttributes atts = new X11.XWindowAttributes();
-			int status = x11.XGetWindowAttributes(dpy, win, atts);
-			if (status == 0) {
-				return null;
+			Xext.INSTANCE.XShapeCombineRectangles(dpy, win,
+					X11.Xext.ShapeBounding, 0, 0, rects, rlist.size(), op,
+					X11.Unsorted);
+		}
+
+		/**
+		 * Compute the rectangles to subtract and to add to go from the old
+		 * shape to the new one. Returns false if the difference cannot be
+		 * applied safely, because a removed rectangle overlaps a kept one.
+		 */
+		private static boolean computeMaskDelta(Rectangle[] oldRectangles,
+				Rectangle[] newRectangles, List removedList, List addedList) {
+			Set oldSet = new HashSet(Arrays.asList(oldRectangles));
+			Set newSet = new HashSet(Arrays.asList(newRectangles));
+			for (int i = 0; i < newRectangles.length; i++) {
+				if (!oldSet.contains(newRectangles[i])) {
+					addedList.add(newRectangles[i]);
+				}
 			}
-			try {
-				for (int i = 0; i < rectangles.length; i++) {
-					Rectangle rect = rectangles[i];
-					x11.XFillRectangle(dpy, pm, gc, rect.x, rect.y, rect.width,
-							rect.height);
+			for (int i = 0; i < oldRectangles.length; i++) {
+				Rectangle r = oldRectangles[i];
+				if (!newSet.contains(r)) {
+					for (int j = 0; j < newRectangles.length; j++) {
+						if (oldSet.contains(newRectangles[j]) && r.intersects(newRectangles[j])) {
+							return false;
+						}
+					}
+					removedList.add(r);
 				}
-			} finally {
-				x11.XFreeGC(dpy, gc);
 			}
-			return pm;
+			return true;
 		}
 
 		@Override
 		protected void setMask(final Component w, final Rectangle[] rectangles) {
 			Runnable action = new Runnable() {
 				public void run() {
-					X11 x11 = X11.INSTANCE;
-					Xext ext = Xext.INSTANCE;
-					Display dpy = x11.XOpenDisplay(null);
-					if (dpy == null) {
-						return;
-					}
-					Pixmap pm = null;
-					try {
+					synchronized (X11WindowUtils.class) {
+						Display dpy = getSharedDisplay();
+						if (dpy == null) {
+							return;
+						}
 						X11.Window win = getDrawable(w);
-						if (rectangles == null
-								|| ((pm = createBitmap(dpy, win, rectangles)) == null)) {
+						if (win == null) {
+							return;
+						}
+						Xext ext = Xext.INSTANCE;
+						if (rectangles == null) {
 							ext.XShapeCombineMask(dpy, win,
 									X11.Xext.ShapeBounding, 0, 0, Pixmap.None,
 									X11.Xext.ShapeSet);
+							appliedMasks.remove(w);
 						} else {
-							ext.XShapeCombineMask(dpy, win,
-									X11.Xext.ShapeBounding, 0, 0, pm,
-									X11.Xext.ShapeSet);
-						}
-					} finally {
-						if (pm != null) {
-							x11.XFreePixmap(dpy, pm);
+							AppliedMask appliedMask = (AppliedMask)appliedMasks.get(w);
+							List removedList = new ArrayList();
+							List addedList = new ArrayList();
+							if (appliedMask != null
+									&& appliedMask.windowID == win.longValue()
+									&& computeMaskDelta(appliedMask.rectangles, rectangles, removedList, addedList)
+									&& removedList.size() + addedList.size() < rectangles.length) {
+								if (!removedList.isEmpty()) {
+									combineRectangles(dpy, win, removedList, X11.Xext.ShapeSubtract);
+								}
+								if (!addedList.isEmpty()) {
+									combineRectangles(dpy, win, addedList, X11.Xext.ShapeUnion);
+								}
+							} else {
+								combineRectangles(dpy, win, Arrays.asList(rectangles), X11.Xext.ShapeSet);
+							}
+							appliedMasks.put(w, new AppliedMask(win.longValue(), (Rectangle[])rectangles.clone()));
 						}
-						x11.XCloseDisplay(dpy);
+						X11.INSTANCE.XFlush(dpy);
 					}
 					setForceHeavyweightPopups(getWindow(w), rectangles != null);
 				}
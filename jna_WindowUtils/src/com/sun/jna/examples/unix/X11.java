@@ -281,6 +281,10 @@ public interface X11 extends Library {
 
         void XShapeCombineMask(Display display, Window window, int dest_kind,
                                int x_off, int y_off, Pixmap src, int op);
+
+        void XShapeCombineRectangles(Display display, Window window, int dest_kind,
+                                     int x_off, int y_off, XRectangle[] rectangles,
+                                     int n_rects, int op, int ordering);
     }
 
     /** Definition (incomplete) of the Xrender library. */